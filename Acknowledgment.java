@@ -1,60 +1,755 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
 interface Acknowledgment {
-    void requestAck();
-    void releaseAck();
+    // waits until every recipient acknowledged or the timeout expired, returns true in the first case
+    boolean requestAck(long timeout);
+    boolean releaseAck(User user);
     boolean isReleased();
+
+    ArrayList<User> getPending();
+    long getSentAt();
+    void setRetransmitted(User user);
+    boolean isRetransmitted(User user);
+
+    // peer seq of the copy sent to user, repeated by its retransmissions
+    void setSeq(User user, long seq);
+    long getSeq(User user);
 }
 
-class SingleAck implements Acknowledgment {
-    private boolean flag;
+abstract class AbstractAck implements Acknowledgment {
+    private long sentAt;
+    private HashSet<User> retransmitted;
+    private HashMap<User, Long> seqs;
 
-    public SingleAck() {
-        flag = false;
+    public AbstractAck() {
+        sentAt = System.nanoTime();
+        retransmitted = new HashSet<User>();
+        seqs = new HashMap<User, Long>();
     }
 
-    public synchronized void requestAck() {
-        while (!flag) {
+    public synchronized boolean requestAck(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        while (!isReleased()) {
+            long delay = deadline - System.currentTimeMillis();
+
+            if (delay <= 0) {
+                return false;
+            }
+
             try {
-                wait();
+                wait(delay);
             } catch (InterruptedException exc) {
                 exc.printStackTrace();
             }
         }
+        return true;
+    }
+
+    public long getSentAt() { return sentAt; }
+
+    public synchronized void setRetransmitted(User user) { retransmitted.add(user); }
+    public synchronized boolean isRetransmitted(User user) { return retransmitted.contains(user); }
+
+    public synchronized void setSeq(User user, long seq) { seqs.put(user, seq); }
+    public synchronized long getSeq(User user) { return seqs.get(user); }
+}
+
+class SingleAck extends AbstractAck {
+    private User recipient;
+    private boolean flag;
+
+    public SingleAck(User recipient) {
+        this.recipient = recipient;
+        flag = false;
     }
 
-    public synchronized void releaseAck() {
+    public synchronized boolean releaseAck(User user) {
+        if (flag || !recipient.equals(user)) {
+            return false;
+        }
+
         flag = true;
         notify();
+        return true;
     }
 
     public synchronized boolean isReleased() {
         return flag;
     }
+
+    public synchronized ArrayList<User> getPending() {
+        return flag ? new ArrayList<User>() : new ArrayList<User>(Arrays.asList(recipient));
+    }
 }
 
-class MultipleAck implements Acknowledgment {
-    private int acks;
+class MultipleAck extends AbstractAck {
+    private HashSet<User> pending;
 
-    public MultipleAck(int acks) {
-        this.acks = acks * (-1);
+    public MultipleAck(ArrayList<User> recipient) {
+        pending = new HashSet<User>(recipient);
     }
 
-    public synchronized void requestAck() {
-        while (acks < 0) {
-            try {
-                wait();
-            } catch (InterruptedException exc) {
-                exc.printStackTrace();
+    public synchronized boolean releaseAck(User user) {
+        if (!pending.remove(user)) {
+            return false;
+        }
+
+        if (pending.isEmpty()) {
+            notify();
+        }
+        return true;
+    }
+
+    public synchronized boolean isReleased() {
+        return pending.isEmpty();
+    }
+
+    public synchronized ArrayList<User> getPending() {
+        return new ArrayList<User>(pending);
+    }
+}
+
+// outstanding acknowledgments by sequence number
+class AckTable {
+    private static final int STRIPES = 16;
+
+    private LongMap[] stripes;
+    private AtomicLong sequence;
+    private ConcurrentHashMap<AddressPort, AtomicLong> peerSequences;
+    private RetentionBuffer retention;
+    private ConcurrentHashMap<AddressPort, RttEstimator> rtt;
+
+    public AckTable() {
+        stripes = new LongMap[STRIPES];
+
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new LongMap();
+        }
+
+        // keeps growing across games, so a peer that joins again is never taken for a duplicate
+        sequence = new AtomicLong(System.currentTimeMillis() << 20);
+        peerSequences = new ConcurrentHashMap<AddressPort, AtomicLong>();
+        retention = new RetentionBuffer(Config.ackRetention);
+        rtt = new ConcurrentHashMap<AddressPort, RttEstimator>();
+    }
+
+    public long nextSeq() {
+        return sequence.incrementAndGet();
+    }
+
+    // numbers the messages to recipient on their own: the receiver tells the duplicates apart without gaps in between
+    public long nextSeq(User recipient) {
+        AddressPort key = new AddressPort(recipient.getAddress(), recipient.getPort());
+        AtomicLong counter = peerSequences.get(key);
+
+        if (counter == null) {
+            // like sequence, keeps growing across games
+            peerSequences.putIfAbsent(key, new AtomicLong(System.currentTimeMillis() << 20));
+            counter = peerSequences.get(key);
+        }
+
+        return counter.incrementAndGet();
+    }
+
+    private LongMap stripe(long seq) {
+        return stripes[(int) (LongMap.mix(seq) & (STRIPES - 1))];
+    }
+
+    public void put(long seq, Acknowledgment ack, Message message) {
+        LongMap map = stripe(seq);
+
+        synchronized (map) {
+            map.put(seq, ack);
+        }
+
+        retention.put(seq, message);
+    }
+
+    public Acknowledgment get(long seq) {
+        LongMap map = stripe(seq);
+
+        synchronized (map) {
+            return (Acknowledgment) map.get(seq);
+        }
+    }
+
+    public void remove(long seq) {
+        LongMap map = stripe(seq);
+
+        synchronized (map) {
+            map.remove(seq);
+        }
+    }
+
+    public Message getRetained(long seq) {
+        return retention.get(seq);
+    }
+
+    public void release(long seq, User user) {
+        Acknowledgment ack = get(seq);
+
+        if (ack == null) {
+            return;
+        }
+
+        // Karn: only acknowledgments of the first transmission are RTT samples
+        if (ack.releaseAck(user) && !ack.isRetransmitted(user)) {
+            getRtt(user).sample(System.nanoTime() - ack.getSentAt());
+        }
+
+        if (ack.isReleased()) {
+            remove(seq);
+        }
+    }
+
+    // user crashed: nobody keeps waiting for it
+    public void fail(User user) {
+        for (LongMap map : stripes) {
+            long[] keys;
+
+            synchronized (map) {
+                keys = map.keys();
+            }
+
+            for (long seq : keys) {
+                Acknowledgment ack = get(seq);
+
+                if (ack != null && ack.releaseAck(user) && ack.isReleased()) {
+                    remove(seq);
+                }
+            }
+        }
+    }
+
+    public RttEstimator getRtt(User user) {
+        AddressPort key = new AddressPort(user.getAddress(), user.getPort());
+        RttEstimator estimator = rtt.get(key);
+
+        if (estimator == null) {
+            rtt.putIfAbsent(key, new RttEstimator());
+            estimator = rtt.get(key);
+        }
+
+        return estimator;
+    }
+
+    // retransmission timeout of the slowest pending recipient, doubled at each attempt
+    public long getTimeout(ArrayList<User> pending, int attempt) {
+        long timeout = Config.ackMinTimeout;
+
+        for (User user : pending) {
+            timeout = Math.max(timeout, getRtt(user).getTimeout());
+        }
+
+        return Math.min(timeout << attempt, Config.ackMaxTimeout);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+
+        for (ConcurrentHashMap.Entry<AddressPort, RttEstimator> entry : rtt.entrySet()) {
+            builder.append(String.format("%-22s %s%n", entry.getKey(), entry.getValue()));
+        }
+
+        return builder.toString();
+    }
+}
+
+// open addressing map with primitive long keys, 0 is reserved for empty slots
+class LongMap {
+    private long[] keys;
+    private Object[] values;
+    private int size;
+
+    public LongMap() {
+        keys = new long[16];
+        values = new Object[16];
+        size = 0;
+    }
+
+    static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private int index(long key) {
+        int mask = keys.length - 1;
+        int i = (int) mix(key) & mask;
+
+        while (keys[i] != 0 && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+
+        return i;
+    }
+
+    public Object get(long key) {
+        int i = index(key);
+        return keys[i] == key ? values[i] : null;
+    }
+
+    public void put(long key, Object value) {
+        if (2 * (size + 1) > keys.length) {
+            resize(2 * keys.length);
+        }
+
+        int i = index(key);
+
+        if (keys[i] == 0) {
+            keys[i] = key;
+            size++;
+        }
+
+        values[i] = value;
+    }
+
+    public void remove(long key) {
+        int mask = keys.length - 1;
+        int i = index(key);
+
+        if (keys[i] != key) {
+            return;
+        }
+
+        keys[i] = 0;
+        values[i] = null;
+        size--;
+
+        // shift back the entries of the same cluster
+        int j = (i + 1) & mask;
+
+        while (keys[j] != 0) {
+            long key2 = keys[j];
+            Object value2 = values[j];
+
+            keys[j] = 0;
+            values[j] = null;
+
+            int k = index(key2);
+            keys[k] = key2;
+            values[k] = value2;
+
+            j = (j + 1) & mask;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long[] keys() {
+        long[] result = new long[size];
+        int j = 0;
+
+        for (long key : keys) {
+            if (key != 0) {
+                result[j++] = key;
             }
         }
+
+        return result;
     }
 
-    public synchronized void releaseAck() {
-        if (++acks >= 0) {
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+
+        keys = new long[capacity];
+        values = new Object[capacity];
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int j = index(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+}
+
+// the last messages sent with an acknowledgment request, kept for retransmission
+class RetentionBuffer {
+    private Message[] messages;
+    private int mask;
+
+    public RetentionBuffer(int capacity) {
+        capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        messages = new Message[capacity];
+        mask = capacity - 1;
+    }
+
+    public synchronized void put(long seq, Message message) {
+        messages[(int) seq & mask] = message;
+    }
+
+    public synchronized Message get(long seq) {
+        Message message = messages[(int) seq & mask];
+        return (message != null && message.getAckIdx() == seq) ? message : null;
+    }
+}
+
+// smoothed RTT and variance (Jacobson/Karels) plus the last samples for percentiles
+class RttEstimator {
+    private static final int SAMPLES = 256;
+
+    private long srtt;      // ns
+    private long rttvar;    // ns
+    private long[] samples;
+    private long count;
+
+    public RttEstimator() {
+        srtt = -1;
+        samples = new long[SAMPLES];
+        count = 0;
+    }
+
+    public synchronized void sample(long rtt) {
+        if (srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar += (Math.abs(srtt - rtt) - rttvar) / 4;
+            srtt += (rtt - srtt) / 8;
+        }
+
+        samples[(int) (count++ % SAMPLES)] = rtt;
+    }
+
+    // ms
+    public synchronized long getTimeout() {
+        if (srtt < 0) {
+            return Config.ackInitialTimeout;
+        }
+        return Math.max(Config.ackMinTimeout, (srtt + 4 * rttvar) / 1000000);
+    }
+
+    // ns
+    public synchronized long getPercentile(double p) {
+        int n = (int) Math.min(count, SAMPLES);
+
+        if (n == 0) {
+            return -1;
+        }
+
+        long[] sorted = Arrays.copyOf(samples, n);
+        Arrays.sort(sorted);
+
+        return sorted[Math.min(n - 1, (int) Math.ceil(p * n) - 1)];
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%6d acks, rtt p50 %8.3f ms, p90 %8.3f ms, p99 %8.3f ms, rto %d ms",
+                count, getPercentile(0.50) / 1e6, getPercentile(0.90) / 1e6, getPercentile(0.99) / 1e6, getTimeout());
+    }
+}
+
+// peer seqs already received from a peer
+class SeqWindow {
+    private static final int SIZE = 1024;
+
+    private long highest;
+    private long[] bits;
+
+    public SeqWindow() {
+        highest = 0;
+        bits = new long[SIZE / 64];
+    }
+
+    // false only if seq was already seen: one too old to tell is handled again rather than lost
+    public boolean accept(long seq) {
+        if (seq > highest) {
+            long shift = seq - highest;
+
+            if (shift >= SIZE) {
+                Arrays.fill(bits, 0);
+            } else {
+                for (long s = highest + 1; s < seq; s++) {
+                    clear(s);
+                }
+            }
+
+            highest = seq;
+            set(seq);
+            return true;
+        }
+
+        if (highest - seq >= SIZE) {
+            return true;
+        }
+
+        if (isSet(seq)) {
+            return false;
+        }
+
+        set(seq);
+        return true;
+    }
+
+    private void set(long seq) {
+        int i = (int) (seq % SIZE);
+        bits[i >>> 6] |= 1L << (i & 63);
+    }
+
+    private void clear(long seq) {
+        int i = (int) (seq % SIZE);
+        bits[i >>> 6] &= ~(1L << (i & 63));
+    }
+
+    private boolean isSet(long seq) {
+        int i = (int) (seq % SIZE);
+        return (bits[i >>> 6] & (1L << (i & 63))) != 0;
+    }
+}
+
+// connection-level sequence numbers exchanged with a peer, used for cumulative and piggybacked acknowledgments
+class Link {
+    private User peer;
+
+    // outbound: {epoch, seq, ackIdx} of the messages waiting for an acknowledgment, in sending order
+    private ArrayDeque<long[]> unacked;
+
+    // inbound
+    private long epoch;             // connection of the peer we are acknowledging
+    private long completed;         // every message up to this one has been handled
+    private TreeSet<Long> done;     // handled messages beyond completed
+    private long owed;              // highest message the peer waits an acknowledgment for
+    private long acked;             // last cumulative acknowledgment sent
+
+    boolean scheduled;
+
+    public Link(User peer) {
+        this.peer = peer;
+        unacked = new ArrayDeque<long[]>();
+        done = new TreeSet<Long>();
+    }
+
+    public User getPeer() { return peer; }
+
+    public synchronized void sent(long epoch, long seq, long ackIdx) {
+        unacked.add(new long[] { epoch, seq, ackIdx });
+    }
+
+    // the ackIdx of every message covered by the cumulative acknowledgment
+    public synchronized ArrayList<Long> release(long epoch, long seq) {
+        ArrayList<Long> released = new ArrayList<Long>();
+
+        while (!unacked.isEmpty()) {
+            long[] head = unacked.peek();
+
+            if (head[0] < epoch) {
+                // sent on a connection that is gone, the retransmission takes care of it
+                unacked.poll();
+            } else if (head[0] == epoch && head[1] <= seq) {
+                released.add(unacked.poll()[2]);
+            } else {
+                break;
+            }
+        }
+
+        return released;
+    }
+
+    public synchronized void received(long epoch, long seq) {
+        if (epoch > this.epoch) {
+            this.epoch = epoch;
+            completed = 0;
+            done.clear();
+            owed = 0;
+            acked = 0;
+        }
+    }
+
+    public synchronized boolean complete(long epoch, long seq) {
+        if (epoch != this.epoch || seq <= completed) {
+            return false;
+        }
+
+        done.add(seq);
+
+        while (!done.isEmpty() && done.first() == completed + 1) {
+            completed = done.pollFirst();
+        }
+
+        return isDue();
+    }
+
+    public synchronized boolean owe(long epoch, long seq) {
+        if (epoch == this.epoch) {
+            owed = Math.max(owed, seq);
+        }
+        return isDue();
+    }
+
+    public synchronized boolean isDue() {
+        return owed > acked && owed <= completed;
+    }
+
+    // attaches the cumulative acknowledgment to an outgoing message, if there is something new to say
+    public synchronized boolean piggyback(Message message) {
+        if (completed <= acked) {
+            return false;
+        }
+
+        message.setAckEpoch(epoch);
+        message.setAckSeq(completed);
+        acked = completed;
+        return true;
+    }
+}
+
+class Links extends Thread {
+    private PlayGame play;
+    private ConcurrentHashMap<AddressPort, Link> links;
+    private AtomicLong epochs;
+
+    // acknowledgments waiting for a message to ride on
+    private ArrayDeque<Link> delayed;
+    private ArrayDeque<Long> deadlines;
+    private boolean running;
+
+    private AtomicLong piggybacked;
+    private AtomicLong standalone;
+
+    public Links(PlayGame play) {
+        this.play = play;
+        links = new ConcurrentHashMap<AddressPort, Link>();
+        epochs = new AtomicLong(System.currentTimeMillis() << 20);
+
+        delayed = new ArrayDeque<Link>();
+        deadlines = new ArrayDeque<Long>();
+        running = true;
+
+        piggybacked = new AtomicLong();
+        standalone = new AtomicLong();
+
+        start();
+    }
+
+    private Link get(User user) {
+        AddressPort key = new AddressPort(user.getAddress(), user.getPort());
+        Link link = links.get(key);
+
+        if (link == null) {
+            links.putIfAbsent(key, new Link(user));
+            link = links.get(key);
+        }
+
+        return link;
+    }
+
+    // outbound, called by the writers
+
+    public long newEpoch() {
+        return epochs.incrementAndGet();
+    }
+
+    public void stamp(Message message, long epoch, long seq) {
+        Link link = get(message.getRecipient());
+
+        message.setLinkEpoch(epoch);
+        message.setLinkSeq(seq);
+
+        if (message.isAckRequested()) {
+            link.sent(epoch, seq, message.getAckIdx());
+        }
+
+        if (link.piggyback(message) && message.getType() != MessageType.ACKNOWLEDGED) {
+            piggybacked.incrementAndGet();
+        }
+    }
+
+    // inbound, called by the message handler
+
+    public void received(Message message) {
+        Link link = get(message.getSender());
+
+        if (message.getAckSeq() > 0) {
+            for (long ackIdx : link.release(message.getAckEpoch(), message.getAckSeq())) {
+                play.getAckTable().release(ackIdx, message.getSender());
+            }
+        }
+
+        link.received(message.getLinkEpoch(), message.getLinkSeq());
+    }
+
+    public void complete(Message message) {
+        Link link = get(message.getSender());
+
+        if (link.complete(message.getLinkEpoch(), message.getLinkSeq())) {
+            schedule(link);
+        }
+    }
+
+    public void owe(Message message) {
+        Link link = get(message.getSender());
+
+        if (link.owe(message.getLinkEpoch(), message.getLinkSeq())) {
+            schedule(link);
+        }
+    }
+
+    private synchronized void schedule(Link link) {
+        if (!link.scheduled) {
+            link.scheduled = true;
+            delayed.add(link);
+            deadlines.add(System.currentTimeMillis() + Config.ackDelay);
             notify();
         }
     }
 
-    public synchronized boolean isReleased() {
-        return acks >= 0;
+    public void run() {
+        while (true) {
+            Link link;
+
+            synchronized (this) {
+                while (running && (delayed.isEmpty() || deadlines.peek() > System.currentTimeMillis())) {
+                    try {
+                        if (delayed.isEmpty()) {
+                            wait();
+                        } else {
+                            wait(Math.max(1, deadlines.peek() - System.currentTimeMillis()));
+                        }
+                    } catch (InterruptedException exc) {
+                        exc.printStackTrace();
+                    }
+                }
+
+                if (!running) {
+                    break;
+                }
+
+                link = delayed.poll();
+                deadlines.poll();
+                link.scheduled = false;
+            }
+
+            // nothing carried the acknowledgment in the meantime
+            if (link.isDue()) {
+                standalone.incrementAndGet();
+                IPC.sendMessage(play, link.getPeer(), MessageType.ACKNOWLEDGED, null, null, false);
+            }
+        }
+    }
+
+    public synchronized void exit() {
+        running = false;
+        notify();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d acknowledgments sent alone, %d piggybacked", standalone.get(), piggybacked.get());
     }
-}
\ No newline at end of file
+}
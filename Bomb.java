@@ -279,10 +279,14 @@ class BombLauncherChild extends Thread {
 
             users = play.getGame().getUsers().toArray(new User[play.getGame().getUsers().size()]);
             for (User user : users) {
-                IPC.sendMessage(play, user, MessageType.BOMB_EXPLOSION, null, Json.toJson(bomb), true);
+                IPC.sendMessage(play, user, MessageType.BOMB_EXPLOSION, null, bomb, true);
             }
 
             for (User user : play.getBombHits()) {
+                if (play.getRing().getIndex() != null) {
+                    play.getRing().getIndex().remove(user);
+                }
+
                 AddressPort key = new AddressPort(user.getAddress(), user.getPort());
                 play.getClient().closeSocket(key);
             }
@@ -0,0 +1,507 @@
+// Message wire formats
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+interface MessageCodec {
+    void write(DataOutputStream out, Message message) throws IOException;
+    Message read(DataInputStream in) throws IOException;
+
+    // everything but the recipient, encoded once for all the copies of a broadcast (null if not supported)
+    byte[] encodeShared(Message message) throws IOException;
+
+    // length of the frame at the head of buffer, -1 if the length prefix is not complete yet;
+    // throws IOException if the prefix is out of bounds
+    int frameLength(ByteBuffer buffer) throws IOException;
+    Message decode(byte[] frame) throws IOException;
+}
+
+class Codecs {
+    static final int MAX_FRAME = 1 << 24;   // bytes
+
+    private static final MessageCodec codec = Config.codec.equals("json") ? new JsonCodec() : new BinaryCodec();
+
+    public static MessageCodec get() {
+        return codec;
+    }
+
+    // a length read off the wire: a corrupt one must not allocate a negative or huge array
+    static int checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME) {
+            throw new IOException("bad length " + length);
+        }
+        return length;
+    }
+
+    static int frameLength(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 4) {
+            return -1;
+        }
+        return 4 + checkLength(buffer.getInt(buffer.position()));
+    }
+}
+
+// int length | UTF-8 JSON text, kept for debugging
+class JsonCodec implements MessageCodec {
+    public void write(DataOutputStream out, Message message) throws IOException {
+        try {
+            byte[] bytes = Json.toBytes(message);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } catch (CodecException exc) {
+            throw new IOException(exc);
+        }
+    }
+
+    public Message read(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[Codecs.checkLength(in.readInt())];
+        in.readFully(bytes);
+
+        return decode(bytes, 0);
+    }
+
+    private Message decode(byte[] bytes, int offset) throws IOException {
+        try {
+            return Json.fromJson(bytes, offset, bytes.length - offset, Message.class);
+        } catch (CodecException exc) {
+            throw new IOException(exc);
+        }
+    }
+
+    public byte[] encodeShared(Message message) {
+        return null;
+    }
+
+    public int frameLength(ByteBuffer buffer) throws IOException {
+        return Codecs.frameLength(buffer);
+    }
+
+    public Message decode(byte[] frame) throws IOException {
+        return decode(frame, 4);
+    }
+}
+
+// length-prefixed binary frame:
+// int length | recipient | peer seq | link epoch | link seq | ack epoch | ack seq | type | sender | ackIdx | head | body
+// where everything after the per-connection envelope is shared by the copies of a broadcast
+class BinaryCodec implements MessageCodec {
+    // body tags
+    private static final int NONE = 0;
+    private static final int TEXT = 1;
+    private static final int POSITION = 2;
+    private static final int BOMB = 3;
+    private static final int USERS = 5;
+    private static final int USER = 6;
+    private static final int POSITIONS = 7;
+    private static final int INDEX = 8;
+    private static final int UPDATE = 9;
+
+    private static final MessageType[] types = MessageType.values();
+    private static final GridArea[] areas = GridArea.values();
+
+    public void write(DataOutputStream out, Message message) throws IOException {
+        byte[] shared = message.getShared();
+
+        if (shared == null) {
+            shared = encodeShared(message);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(48);
+        DataOutputStream envelope = new DataOutputStream(bytes);
+
+        writeUser(envelope, message.getRecipient());
+        writeVarLong(envelope, message.getPeerSeq());
+        writeVarLong(envelope, message.getLinkEpoch());
+        writeVarLong(envelope, message.getLinkSeq());
+        writeVarLong(envelope, message.getAckEpoch());
+        writeVarLong(envelope, message.getAckSeq());
+
+        out.writeInt(bytes.size() + shared.length);
+        bytes.writeTo(out);
+        out.write(shared);
+    }
+
+    public byte[] encodeShared(Message message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream payload = new DataOutputStream(bytes);
+
+        payload.writeByte(message.getType().ordinal());
+        writeUser(payload, message.getSender());
+        writeVarLong(payload, message.getAckIdx());
+        writeHead(payload, message.getHead());
+        writeBody(payload, message);
+
+        return bytes.toByteArray();
+    }
+
+    public Message read(DataInputStream in) throws IOException {
+        byte[] payload = new byte[Codecs.checkLength(in.readInt())];
+        in.readFully(payload);
+
+        return decode(new DataInputStream(new ByteArrayInputStream(payload)));
+    }
+
+    public int frameLength(ByteBuffer buffer) throws IOException {
+        return Codecs.frameLength(buffer);
+    }
+
+    public Message decode(byte[] frame) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+        in.readInt();
+
+        return decode(in);
+    }
+
+    private Message decode(DataInputStream in) throws IOException {
+        Message message = new Message();
+
+        message.setRecipient(readUser(in));
+        message.setPeerSeq(readVarLong(in));
+        message.setLinkEpoch(readVarLong(in));
+        message.setLinkSeq(readVarLong(in));
+        message.setAckEpoch(readVarLong(in));
+        message.setAckSeq(readVarLong(in));
+        message.setType(readType(in));
+        message.setSender(readUser(in));
+        message.setAckIdx(readVarLong(in));
+        message.setHead(readHead(in));
+        readBody(in, message);
+
+        return message;
+    }
+
+    // body
+
+    private void writeBody(DataOutputStream out, Message message) throws IOException {
+        Object content = message.getContent();
+
+        if (content instanceof Position) {
+            out.writeByte(POSITION);
+            writePosition(out, (Position) content);
+        } else if (content instanceof Bomb) {
+            out.writeByte(BOMB);
+            out.writeByte(((Bomb) content).getArea().ordinal());
+        } else if (content instanceof User[]) {
+            User[] users = (User[]) content;
+            out.writeByte(USERS);
+            writeVarInt(out, users.length);
+            for (User user : users) {
+                writeUser(out, user);
+            }
+        } else if (content instanceof Position[]) {
+            Position[] positions = (Position[]) content;
+            out.writeByte(POSITIONS);
+            writeVarInt(out, positions.length);
+            for (Position position : positions) {
+                writePosition(out, position);
+            }
+        } else if (content instanceof PositionIndex) {
+            ArrayList<PositionIndex.Entry> entries = ((PositionIndex) content).getEntries();
+            out.writeByte(INDEX);
+            writeVarInt(out, entries.size());
+            for (PositionIndex.Entry entry : entries) {
+                writeUser(out, entry.getUser());
+                writePosition(out, entry.getPosition());
+            }
+        } else if (content instanceof IndexUpdate) {
+            IndexUpdate update = (IndexUpdate) content;
+            out.writeByte(UPDATE);
+            writeVarLong(out, update.getBase());
+            writeVarLong(out, update.getVersion());
+            out.writeBoolean(update.isFull());
+            writeVarInt(out, update.getChanges().size());
+            for (PositionIndex.Entry change : update.getChanges()) {
+                writeUser(out, change.getUser());
+                out.writeBoolean(change.getPosition() != null);
+                if (change.getPosition() != null) {
+                    writePosition(out, change.getPosition());
+                }
+            }
+        } else if (content instanceof User) {
+            out.writeByte(USER);
+            writeUser(out, (User) content);
+        } else if (message.getBody() != null) {
+            out.writeByte(TEXT);
+            writeString(out, message.getBody());
+        } else {
+            out.writeByte(NONE);
+        }
+    }
+
+    private void readBody(DataInputStream in, Message message) throws IOException {
+        switch (in.readUnsignedByte()) {
+            case TEXT:
+                message.setBody(readString(in));
+                break;
+            case POSITION:
+                message.setContent(readPosition(in));
+                break;
+            case BOMB:
+                message.setContent(new Bomb(readArea(in)));
+                break;
+            case USERS:
+                User[] users = new User[Codecs.checkLength(readVarInt(in))];
+                for (int i = 0; i < users.length; i++) {
+                    users[i] = readUser(in);
+                }
+                message.setContent(users);
+                break;
+            case USER:
+                message.setContent(readUser(in));
+                break;
+            case POSITIONS:
+                Position[] positions = new Position[Codecs.checkLength(readVarInt(in))];
+                for (int i = 0; i < positions.length; i++) {
+                    positions[i] = readPosition(in);
+                }
+                message.setContent(positions);
+                break;
+            case INDEX:
+                ArrayList<PositionIndex.Entry> entries = new ArrayList<PositionIndex.Entry>();
+                for (int i = readVarInt(in); i > 0; i--) {
+                    entries.add(new PositionIndex.Entry(readUser(in), readPosition(in)));
+                }
+                PositionIndex index = new PositionIndex();
+                index.setEntries(entries);
+                message.setContent(index);
+                break;
+            case UPDATE:
+                IndexUpdate update = new IndexUpdate(readVarLong(in), readVarLong(in), in.readBoolean(), new ArrayList<PositionIndex.Entry>());
+                for (int i = readVarInt(in); i > 0; i--) {
+                    User user = readUser(in);
+                    update.getChanges().add(new PositionIndex.Entry(user, in.readBoolean() ? readPosition(in) : null));
+                }
+                message.setContent(update);
+                break;
+            case NONE:
+                break;
+            default:
+                throw new IOException("unknown body tag");
+        }
+    }
+
+    private static MessageType readType(DataInputStream in) throws IOException {
+        int ordinal = in.readUnsignedByte();
+
+        if (ordinal >= types.length) {
+            throw new IOException("unknown message type " + ordinal);
+        }
+        return types[ordinal];
+    }
+
+    private static GridArea readArea(DataInputStream in) throws IOException {
+        int ordinal = in.readUnsignedByte();
+
+        if (ordinal >= areas.length) {
+            throw new IOException("unknown grid area " + ordinal);
+        }
+        return areas[ordinal];
+    }
+
+    private static void writePosition(DataOutputStream out, Position position) throws IOException {
+        writeVarInt(out, position.getX());
+        writeVarInt(out, position.getY());
+        writeVarInt(out, position.getGrid());
+    }
+
+    private static Position readPosition(DataInputStream in) throws IOException {
+        Position position = new Position();
+        position.setX(readVarInt(in));
+        position.setY(readVarInt(in));
+        position.setGrid(readVarInt(in));
+        return position;
+    }
+
+    // peer record: name | address | port
+
+    static void writeUser(DataOutputStream out, User user) throws IOException {
+        if (user == null) {
+            out.writeByte(0);
+            return;
+        }
+
+        byte[] ipv4 = parseIPv4(user.getAddress());
+
+        if (ipv4 != null) {
+            out.writeByte(4);
+            out.write(ipv4);
+        } else {
+            out.writeByte(1);
+            writeString(out, user.getAddress());
+        }
+
+        writeString(out, user.getName());
+        out.writeShort(user.getPort());
+    }
+
+    static User readUser(DataInputStream in) throws IOException {
+        String address;
+
+        switch (in.readUnsignedByte()) {
+            case 0:
+                return null;
+            case 4:
+                address = in.readUnsignedByte() + "." + in.readUnsignedByte() + "." + in.readUnsignedByte() + "." + in.readUnsignedByte();
+                break;
+            default:
+                address = readString(in);
+                break;
+        }
+
+        String name = readString(in);
+        int port = in.readUnsignedShort();
+
+        return new User(name, address, port);
+    }
+
+    // only canonical dotted quads, anything else travels as text so equals() is preserved
+    private static byte[] parseIPv4(String address) {
+        if (address == null) {
+            return null;
+        }
+
+        String[] parts = address.split("\\.");
+
+        if (parts.length != 4) {
+            return null;
+        }
+
+        byte[] bytes = new byte[4];
+
+        for (int i = 0; i < 4; i++) {
+            String part = parts[i];
+
+            if (part.isEmpty() || part.length() > 3 || (part.length() > 1 && part.charAt(0) == '0')) {
+                return null;
+            }
+
+            int value = 0;
+
+            for (int j = 0; j < part.length(); j++) {
+                char c = part.charAt(j);
+                if (c < '0' || c > '9') {
+                    return null;
+                }
+                value = 10 * value + (c - '0');
+            }
+
+            if (value > 255) {
+                return null;
+            }
+
+            bytes[i] = (byte) value;
+        }
+
+        return bytes;
+    }
+
+    // head
+
+    private static void writeHead(DataOutputStream out, HashMap<String, String> head) throws IOException {
+        if (head == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+
+        writeVarInt(out, 1 + head.size());
+
+        for (Map.Entry<String, String> entry : head.entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+    }
+
+    private static HashMap<String, String> readHead(DataInputStream in) throws IOException {
+        int size = readVarInt(in);
+
+        if (size == 0) {
+            return null;
+        }
+
+        HashMap<String, String> head = new HashMap<String, String>();
+
+        for (int i = 1; i < size; i++) {
+            head.put(readString(in), readString(in));
+        }
+
+        return head;
+    }
+
+    // primitives
+
+    static void writeString(DataOutputStream out, String string) throws IOException {
+        if (string == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, 1 + bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = readVarInt(in);
+
+        if (length == 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[Codecs.checkLength(length - 1)];
+        in.readFully(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+
+        do {
+            b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        return value;
+    }
+
+    static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+
+        do {
+            b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        return value;
+    }
+}
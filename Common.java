@@ -1,8 +1,13 @@
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 
 class AddressPort {
     private String address;
@@ -15,10 +20,18 @@ class AddressPort {
 
     @Override
     public boolean equals(Object obj) {
+        if (!(obj instanceof AddressPort)) {
+            return false;
+        }
         AddressPort tmp = (AddressPort) obj;
         return address.equals(tmp.address) && (port == tmp.port);
     }
 
+    @Override
+    public int hashCode() {
+        return 31 * address.hashCode() + port;
+    }
+
     public String getAddress() {
         return address;
     }
@@ -57,10 +70,18 @@ class User {
 
     @Override
     public boolean equals(Object obj) {
+        if (!(obj instanceof User)) {
+            return false;
+        }
         User user = (User) obj;
         return this.address.equals(user.getAddress()) && this.port == user.getPort();
     }
 
+    @Override
+    public int hashCode() {
+        return 31 * address.hashCode() + port;
+    }
+
     @Override
     public String toString() {
         return Json.toJson(this);
@@ -71,6 +92,7 @@ class Game {
     private String name;            // game name
     private int grid;               // grid length
     private int score;              // target score
+    private String mutex;           // mutual exclusion strategy
     private ArrayList<User> users;  // user list
 
     public Game() {}
@@ -82,6 +104,14 @@ class Game {
         users = new ArrayList<User>();
     }
 
+    public Game(Game game) {
+        name = game.name;
+        grid = game.grid;
+        score = game.score;
+        mutex = game.mutex;
+        users = (game.users == null) ? new ArrayList<User>() : new ArrayList<User>(game.users);
+    }
+
     public String getName() { return name; }
     public void setName(String string) { name = string; }
 
@@ -91,6 +121,9 @@ class Game {
     public int getScore() { return score; }
     public void setScore(int number) { score = number; }
 
+    public String getMutex() { return mutex; }
+    public void setMutex(String string) { mutex = string; }
+
     public ArrayList<User> getUsers() { return users; }
     public void setUsers(ArrayList<User> list) { users = list; }
 }
@@ -99,6 +132,15 @@ enum MessageType {
     OK,
 
     TOKEN,
+    TOKEN_REQUEST,
+
+    CS_REQUEST,
+    CS_REPLY,
+
+    HEARTBEAT,
+    TOKEN_PROBE,
+    TOKEN_PROBE_REPLY,
+    TOKEN_RESOLVE,
 
     ACKNOWLEDGED,
 
@@ -108,16 +150,17 @@ enum MessageType {
     GAME_NAME_UNAVAILABLE,
     GAME_NOT_EXIST,
     GAME_USER_DUPLICATION,
-    GAME_USER_WELCOME,
+    GAME_FULL,
     GAME_USER_LEFT,
     GAME_OVER,
 
     RING_ENTRY_REQUEST,
     RING_ENTRY_FAILED,
     RING_ENTRY_SUCCEEDED,
+    VIEW_CHANGE,
+    VIEW_REQUEST,
+    VIEW_SNAPSHOT,
 
-    NEIGHBORS_UPDATE,
-    USER_LIST_UPDATE,
     SOCKET_CLOSURE,
 
     POSITION_REQUEST,
@@ -137,7 +180,17 @@ class Message {
     private User recipient;
     private HashMap<String, String> head;
     private String body;
-    private String ackIdx;
+    private Object content;     // decoded body, never serialized
+    private long ackIdx;
+    private long peerSeq;       // among the messages from the sender to the recipient, kept by the retransmissions
+    private byte[] shared;      // encoded by the codec once for every recipient
+    private boolean ackRequested;
+
+    // per connection: sequence number of this message and cumulative acknowledgment of the peer's messages
+    private long linkEpoch;
+    private long linkSeq;
+    private long ackEpoch;
+    private long ackSeq;
 
     public MessageType getType() { return type; }
     public void setType(MessageType type) { this.type = type; }
@@ -151,11 +204,55 @@ class Message {
     public HashMap<String, String> getHead() { return head; }
     public void setHead(HashMap<String, String> map) { head = map; }
 
-    public String getBody() { return body; }
-    public void setBody(String string) { body = string; }
+    public String getBody() {
+        if (body == null && content != null) {
+            body = Json.toJson(content);
+        }
+        return body;
+    }
+    public void setBody(String string) { body = string; content = null; }
+
+    @JsonIgnore
+    public Object getContent() { return content; }
+    @JsonIgnore
+    public void setContent(Object obj) { content = obj; body = null; }
+
+    // the body as an instance of cls, the JSON text is parsed at most once
+    public <T> T getBodyAs(Class<T> cls) {
+        if (!cls.isInstance(content)) {
+            String json = getBody();
+            content = (json == null) ? null : Json.fromJson(json, cls);
+        }
+        return cls.cast(content);
+    }
+
+    public long getAckIdx() { return ackIdx; }
+    public void setAckIdx(long number) { ackIdx = number; }
+
+    public long getPeerSeq() { return peerSeq; }
+    public void setPeerSeq(long number) { peerSeq = number; }
 
-    public String getAckIdx() { return ackIdx; }
-    public void setAckIdx(String string) { ackIdx = string; }
+    @JsonIgnore
+    public byte[] getShared() { return shared; }
+    @JsonIgnore
+    public void setShared(byte[] bytes) { shared = bytes; }
+
+    @JsonIgnore
+    public boolean isAckRequested() { return ackRequested; }
+    @JsonIgnore
+    public void setAckRequested(boolean flag) { ackRequested = flag; }
+
+    public long getLinkEpoch() { return linkEpoch; }
+    public void setLinkEpoch(long number) { linkEpoch = number; }
+
+    public long getLinkSeq() { return linkSeq; }
+    public void setLinkSeq(long number) { linkSeq = number; }
+
+    public long getAckEpoch() { return ackEpoch; }
+    public void setAckEpoch(long number) { ackEpoch = number; }
+
+    public long getAckSeq() { return ackSeq; }
+    public void setAckSeq(long number) { ackSeq = number; }
 
     @Override
     public String toString() {
@@ -163,29 +260,78 @@ class Message {
     }
 }
 
+// readers and writers are immutable and thread-safe: one per type, built on first use
 class Json {
     private static ObjectMapper mapper = new ObjectMapper();
+    private static ConcurrentHashMap<Class<?>, ObjectReader> readers = new ConcurrentHashMap<Class<?>, ObjectReader>();
+    private static ConcurrentHashMap<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<Class<?>, ObjectWriter>();
+
+    private static ObjectReader reader(Class<?> cls) {
+        return readers.computeIfAbsent(cls, mapper::readerFor);
+    }
+
+    private static ObjectWriter writer(Object obj) {
+        return writers.computeIfAbsent(obj == null ? Object.class : obj.getClass(), mapper::writerFor);
+    }
 
     public static String toJson(Object obj) {
         try {
-            return mapper.writeValueAsString(obj);
+            return writer(obj).writeValueAsString(obj);
         } catch (JsonProcessingException exc) {
-            exc.printStackTrace();
+            throw new CodecException("cannot serialize " + (obj == null ? null : obj.getClass().getName()), exc);
+        }
+    }
+
+    // UTF-8
+    public static byte[] toBytes(Object obj) {
+        try {
+            return writer(obj).writeValueAsBytes(obj);
+        } catch (JsonProcessingException exc) {
+            throw new CodecException("cannot serialize " + (obj == null ? null : obj.getClass().getName()), exc);
+        }
+    }
+
+    public static <T> T fromJson(String json, Class<T> cls) {
+        try {
+            return reader(cls).readValue(json);
+        } catch (IOException exc) {
+            throw new CodecException("malformed " + cls.getSimpleName(), exc);
         }
-        return null;
     }
 
-    public static Object fromJson(String json, Class cls) {
+    public static <T> T fromJson(byte[] json, int offset, int length, Class<T> cls) {
         try {
-            return mapper.readValue(json, cls);
+            return reader(cls).readValue(json, offset, length);
         } catch (IOException exc) {
-            exc.printStackTrace();
+            throw new CodecException("malformed " + cls.getSimpleName(), exc);
         }
-        return null;
+    }
+
+    public static <T> T fromJson(byte[] json, Class<T> cls) {
+        return fromJson(json, 0, json.length, cls);
+    }
+
+    public static <T> T fromJson(InputStream in, Class<T> cls) {
+        try {
+            return reader(cls).readValue(in);
+        } catch (IOException exc) {
+            throw new CodecException("malformed " + cls.getSimpleName(), exc);
+        }
+    }
+}
+
+// a document that cannot be (de)serialized: a bug, or a peer speaking another version
+class CodecException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public CodecException(String message, Throwable cause) {
+        super(message, cause);
     }
 }
 
-class TimeoutException extends Exception {}
+class TimeoutException extends Exception {
+    private static final long serialVersionUID = 1L;
+}
 
 class Semaphore {
     private int permits;
@@ -0,0 +1,77 @@
+// Runtime configuration (overridable with -Dmmog.<option>=<value>)
+
+class Config {
+    // transport: "thread" (one ServerChild per socket) or "nio" (selector event loops)
+    public static final String transport = System.getProperty("mmog.transport", "thread");
+    public static final int eventLoops = Integer.getInteger("mmog.eventLoops", 2);
+
+    // wire format: "binary" or "json"
+    public static final String codec = System.getProperty("mmog.codec", "binary");
+
+    // outbound connections kept per peer and idle time before they are closed
+    public static final int poolPeerCap = Integer.getInteger("mmog.poolPeerCap", 1);
+    public static final long poolIdleMillis = Long.getLong("mmog.poolIdleMillis", 60000);
+
+    // message queues: slots (rounded up to a power of two) and how the consumer waits ("park" or "spin")
+    public static final int queueCapacity = Integer.getInteger("mmog.queueCapacity", 4096);
+    public static final WaitStrategy queueWait = System.getProperty("mmog.queueWait", "park").equals("spin") ? WaitStrategy.SPIN_THEN_PARK : WaitStrategy.PARK;
+
+    // message handler workers, at most (the handlers waiting for the critical section get a thread each)
+    public static final int handlerThreads = Integer.getInteger("mmog.handlerThreads", 8);
+
+    // print the collected statistics when a game ends
+    public static final boolean metrics = Boolean.getBoolean("mmog.metrics");
+
+    // acknowledgments: retransmissions before giving up, timeouts (ms) and messages kept for retransmission
+    public static final int ackRetries = Integer.getInteger("mmog.ackRetries", 4);
+    public static final long ackInitialTimeout = Long.getLong("mmog.ackInitialTimeout", 1000);
+    public static final long ackMinTimeout = Long.getLong("mmog.ackMinTimeout", 200);
+    public static final long ackMaxTimeout = Long.getLong("mmog.ackMaxTimeout", 10000);
+    public static final int ackRetention = Integer.getInteger("mmog.ackRetention", 1024);
+
+    // how long (ms) an acknowledgment waits for a message to ride on before it is sent alone
+    public static final long ackDelay = Long.getLong("mmog.ackDelay", 2);
+
+    // idle token, opt-in (otherwise it keeps circulating): delay per hop (ms) doubling every round up to a maximum,
+    // rounds before it is parked, and how long (ms) a peer waits for a parked token before asking again
+    public static final boolean tokenParking = Boolean.getBoolean("mmog.tokenParking");
+    public static final long tokenBaseDelay = Long.getLong("mmog.tokenBaseDelay", 1);
+    public static final long tokenMaxDelay = Long.getLong("mmog.tokenMaxDelay", 100);
+    public static final int tokenParkRounds = Integer.getInteger("mmog.tokenParkRounds", 8);
+    public static final long tokenWakeTimeout = Long.getLong("mmog.tokenWakeTimeout", 1000);
+
+    // mutual exclusion of the games created here ("ring", "suzuki-kasami" or "ricart-agrawala"),
+    // and how often (ms) a waiting request drops the peers that left meanwhile
+    public static final String mutex = System.getProperty("mmog.mutex", MutualExclusions.RING);
+    public static final long mutexRecheck = Long.getLong("mmog.mutexRecheck", 1000);
+
+    // longest (ms) a peer keeps the critical section to apply the keys typed while waiting for it
+    public static final long maxHold = Long.getLong("mmog.maxHold", 50);
+
+    // failure detection (ms): heartbeat period on idle links, silence before a peer is suspected,
+    // and how long the connection attempt to a suspect and the token probe may take
+    public static final long heartbeatInterval = Long.getLong("mmog.heartbeatInterval", 500);
+    public static final long suspectTimeout = Long.getLong("mmog.suspectTimeout", 3000);
+    public static final long probeTimeout = Long.getLong("mmog.probeTimeout", 2000);
+
+    // outbound connections (ms): connect timeout, first and longest delay between attempts,
+    // and attempts before the messages queued for an unreachable peer are given up
+    public static final long connectTimeout = Long.getLong("mmog.connectTimeout", 1000);
+    public static final long connectBackoff = Long.getLong("mmog.connectBackoff", 50);
+    public static final long connectMaxBackoff = Long.getLong("mmog.connectMaxBackoff", 2000);
+    public static final int connectRetries = Integer.getInteger("mmog.connectRetries", 6);
+
+    // server registry: directory of its journal and snapshot (kept in memory only if unset),
+    // and journal entries between two snapshots
+    public static final String dataDir = System.getProperty("mmog.dataDir");
+    public static final long snapshotEvery = Long.getLong("mmog.snapshotEvery", 100000);
+
+    // registry partitioning: comma separated URLs of the server nodes (the single serverURL if unset),
+    // the URL of this node, and points of the hash ring per node
+    public static final String nodes = System.getProperty("mmog.nodes");
+    public static final String self = System.getProperty("mmog.self");
+    public static final int vnodes = Integer.getInteger("mmog.vnodes", 128);
+
+    // key a rebalance request must carry in its X-MMOG-Key header (refused by every node if unset)
+    public static final String adminKey = System.getProperty("mmog.adminKey");
+}
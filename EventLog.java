@@ -0,0 +1,225 @@
+// Change feed of the server: games created and removed, users joining and leaving them
+
+import javax.ws.rs.container.AsyncResponse;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+enum EventType {
+    GAME_CREATED,
+    GAME_REMOVED,
+    GAME_MOVED,     // handed over to another node by a rebalance, listed again by the feed of that node
+    USER_JOINED,
+    USER_LEFT,
+}
+
+class Event {
+    private long seq;
+    private EventType type;
+    private String game;
+    private User user;      // who joined or left
+    private Game info;      // the game created
+
+    public Event() {}
+
+    public Event(long seq, EventType type, String game, User user, Game info) {
+        this.seq = seq;
+        this.type = type;
+        this.game = game;
+        this.user = user;
+        this.info = info;
+    }
+
+    public long getSeq() { return seq; }
+    public void setSeq(long number) { seq = number; }
+
+    public EventType getType() { return type; }
+    public void setType(EventType value) { type = value; }
+
+    public String getGame() { return game; }
+    public void setGame(String string) { game = string; }
+
+    public User getUser() { return user; }
+    public void setUser(User value) { user = value; }
+
+    public Game getInfo() { return info; }
+    public void setInfo(Game value) { info = value; }
+}
+
+// the events after a given sequence number
+class EventBatch {
+    private long last;          // to be passed as since in the next request
+    private boolean reset;      // some events are gone: the game list has to be fetched again
+    private Event[] events;
+
+    public EventBatch() {}
+
+    public EventBatch(long last, boolean reset, Event[] events) {
+        this.last = last;
+        this.reset = reset;
+        this.events = events;
+    }
+
+    public long getLast() { return last; }
+    public void setLast(long number) { last = number; }
+
+    public boolean getReset() { return reset; }
+    public void setReset(boolean value) { reset = value; }
+
+    public Event[] getEvents() { return events; }
+    public void setEvents(Event[] array) { events = array; }
+}
+
+// the last CAPACITY events, and the long polls waiting for the next one.
+// an event is numbered when the change is made, under its lock, and published once the change is on disk:
+// the polls see the events in order, and only the published ones
+class EventLog {
+    private static final int CAPACITY = 4096;
+    private static final long POLL_TIMEOUT = 30;    // seconds
+
+    private Event[] events;     // a slot is reused CAPACITY events later, possibly before its event is published
+    private long[] settled;     // sequence number of the last event of the slot settled
+    private long last;          // sequence number of the last event, the first one is 1
+    private long published;     // every event up to this one is settled
+    private HashMap<AsyncResponse, Long> waiting;
+
+    // statistics
+    private long fanOuts;
+    private long resumed;
+
+    public EventLog() {
+        events = new Event[CAPACITY];
+        settled = new long[CAPACITY];
+        last = 0;
+        published = 0;
+        waiting = new HashMap<AsyncResponse, Long>();
+    }
+
+    public synchronized Event reserve(EventType type, String game, User user, Game info) {
+        last++;
+
+        Event event = new Event(last, type, game, user, info);
+        events[(int) (last % CAPACITY)] = event;
+
+        return event;
+    }
+
+    // called without holding any lock of the registry: the waiting polls are answered here
+    public void publish(List<Event> list) {
+        HashMap<AsyncResponse, Long> tmp;
+
+        synchronized (this) {
+            for (Event event : list) {
+                settled[(int) (event.getSeq() % CAPACITY)] = event.getSeq();
+            }
+
+            long before = published;
+
+            while (published < last && settled[(int) ((published + 1) % CAPACITY)] == published + 1) {
+                published++;
+            }
+
+            if (published == before || waiting.isEmpty()) {
+                return;
+            }
+
+            tmp = waiting;
+            waiting = new HashMap<AsyncResponse, Long>();
+
+            fanOuts++;
+            resumed += tmp.size();
+        }
+
+        // the waiting polls are mostly at the same point: each batch is serialized once
+        HashMap<Long, String> batches = new HashMap<Long, String>();
+
+        for (Map.Entry<AsyncResponse, Long> entry : tmp.entrySet()) {
+            String batch = batches.computeIfAbsent(entry.getValue(), this::serialize);
+            entry.getKey().resume(batch);
+        }
+    }
+
+    // answers at once if there are events after since, otherwise when the next one happens or after the timeout
+    public void poll(long since, AsyncResponse response) {
+        synchronized (this) {
+            if (since >= 0 && since == published) {
+                response.setTimeout(POLL_TIMEOUT, TimeUnit.SECONDS);
+                response.setTimeoutHandler(this::expire);
+                waiting.put(response, since);
+                return;
+            }
+        }
+
+        response.resume(serialize(since));
+    }
+
+    private void expire(AsyncResponse response) {
+        Long since;
+
+        synchronized (this) {
+            since = waiting.remove(response);
+        }
+
+        if (since != null) {
+            response.resume(serialize(since));
+        }
+    }
+
+    public synchronized EventBatch since(long since) {
+        long first = Math.max(1, published - CAPACITY + 1);
+
+        // too old, or from before a restart of the server
+        if (since < first - 1 || since > published) {
+            return new EventBatch(published, true, new Event[0]);
+        }
+
+        ArrayList<Event> list = new ArrayList<Event>();
+
+        for (long seq = since + 1; seq <= published; seq++) {
+            Event event = events[(int) (seq % CAPACITY)];
+
+            // taken by a later event, reserved but maybe not published yet: this one is lost, the list is to be fetched again
+            if (event != null && event.getSeq() != seq) {
+                return new EventBatch(published, true, new Event[0]);
+            }
+
+            // null: cancelled
+            if (event != null) {
+                list.add(event);
+            }
+        }
+
+        return new EventBatch(published, false, list.toArray(new Event[0]));
+    }
+
+    // the changes didn't make it to disk: their events are never seen
+    public void cancel(List<Event> list) {
+        synchronized (this) {
+            for (Event event : list) {
+                int slot = (int) (event.getSeq() % CAPACITY);
+
+                if (events[slot] == event) {
+                    events[slot] = null;
+                }
+            }
+        }
+
+        publish(list);
+    }
+
+    private String serialize(long since) {
+        Message message = new Message();
+        message.setType(MessageType.OK);
+        message.setContent(since(since));
+
+        return Json.toJson(message);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("events: %d, %d polls waiting, %d fan-outs resumed %d polls",
+                published, waiting.size(), fanOuts, resumed);
+    }
+}
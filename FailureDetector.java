@@ -0,0 +1,278 @@
+// Crash detection and ring repair
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+// each peer watches its prev: any message counts as a heartbeat, explicit ones are sent only on idle links
+class FailureDetector extends Thread {
+    private PlayGame play;
+    private ConcurrentHashMap<User, Long> lastHeard;
+    private ConcurrentHashMap<User, Long> lastSent;
+    private boolean running;
+
+    // regeneration being decided by us: the answers to the probe, by member
+    private HashMap<User, Message> replies;
+    private long proposal;
+
+    // statistics
+    private long suspected;
+    private long heartbeats;
+    private long failures;
+    private long recoveryMillis;
+    private long regenerated;
+
+    public FailureDetector(PlayGame play) {
+        this.play = play;
+        lastHeard = new ConcurrentHashMap<User, Long>();
+        lastSent = new ConcurrentHashMap<User, Long>();
+        running = true;
+
+        start();
+    }
+
+    public void heard(User user) {
+        lastHeard.put(user, System.currentTimeMillis());
+    }
+
+    public void sent(User user) {
+        lastSent.put(user, System.currentTimeMillis());
+    }
+
+    // user never acknowledged a message: checked right away if we watch it, otherwise its own successor will
+    public void suspect(User user) {
+        System.out.format("%s doesn't answer...\n", user.getName());
+
+        synchronized (this) {
+            suspected++;
+
+            if (user.equals(play.getPrev())) {
+                lastHeard.put(user, 0L);
+                notifyAll();
+            }
+        }
+    }
+
+    public void run() {
+        while (isRunning()) {
+            synchronized (this) {
+                try {
+                    wait(Config.heartbeatInterval);
+                } catch (InterruptedException exc) {
+                    exc.printStackTrace();
+                }
+            }
+
+            if (!isRunning() || play.getRing() == null || play.getGameOver()) {
+                continue;
+            }
+
+            long now = System.currentTimeMillis();
+
+            // keep the link to our next alive
+            User next = play.getNext();
+
+            if (next != null && !next.equals(play.getUser()) && now - lastSent.getOrDefault(next, 0L) >= Config.heartbeatInterval) {
+                synchronized (this) {
+                    heartbeats++;
+                }
+
+                IPC.sendMessage(play, next, MessageType.HEARTBEAT, null, null, false);
+            }
+
+            // and check on our prev
+            User prev = play.getPrev();
+
+            if (prev == null || prev.equals(play.getUser())) {
+                continue;
+            }
+
+            Long heard = lastHeard.putIfAbsent(prev, now);
+
+            if (heard != null && now - heard > Config.suspectTimeout) {
+                if (alive(prev)) {
+                    heard(prev);
+                } else {
+                    repair(prev, heard);
+                }
+            }
+        }
+    }
+
+    // a suspect is given one more chance: does it answer a heartbeat?
+    private boolean alive(User user) {
+        return IPC.ping(play, user, Config.probeTimeout);
+    }
+
+    // we are the successor of the crashed peer, so nobody else is doing this
+    private void repair(User user, long heard) {
+        System.out.format("%s seems to have crashed, repairing the ring...\n", user.getName());
+
+        lastHeard.remove(user);
+        forget(user);
+
+        // waiting for the critical section must not stop our heartbeats
+        new Thread(() -> recover(user, heard)).start();
+    }
+
+    // nobody sends it anything anymore, the token goes around it
+    private void forget(User user) {
+        play.getView().fail(user);
+        play.updateUsers();
+
+        play.getAckTable().fail(user);
+        play.getRing().peerFailed(user);
+        play.getHandler().forget(user);
+        play.getHandler().background(() -> play.getClient().closeSocket(new AddressPort(user.getAddress(), user.getPort())));
+    }
+
+    private void recover(User user, long heard) {
+        // the token might have been lost with it
+        while (isRunning() && !play.getGameOver() && !probe(user)) {
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextLong(1, Config.probeTimeout));
+            } catch (InterruptedException exc) {
+                exc.printStackTrace();
+            }
+        }
+
+        // membership: in the critical section, like joins and leaves; the others derive their new neighbors as usual
+        play.getMutex().acquire();
+        play.getRing().requestCS();
+
+        if (play.getGameOver()) {
+            // ring.releaseCS();
+            play.getMutex().release();
+            return;
+        }
+
+        ViewChange change = play.getView().remove(user);
+        play.updateUsers();
+        IPC.sendMessage(play, play.getGame().getUsers(), MessageType.VIEW_CHANGE, null, change, true);
+
+        SRC.removeUser(play.getGame().getName(), user.getName());
+
+        play.getRing().releaseCS();
+        play.getMutex().release();
+
+        synchronized (this) {
+            failures++;
+            recoveryMillis += System.currentTimeMillis() - heard;
+        }
+
+        System.out.println("...the ring has been repaired.");
+    }
+
+    // asks every member whether it has the token, while the tokens still on their way are held back:
+    // it is regenerated only if everybody answered and nobody has it or saw a newer one.
+    // false if it has to be asked again (somebody didn't answer, or is deciding a regeneration of its own)
+    private boolean probe(User crashed) {
+        MutualExclusion ring = play.getRing();
+
+        if (ring.holdsToken()) {
+            return true;
+        }
+
+        long gen = ring.generation() + 1;
+        ArrayList<User> others = new ArrayList<User>(play.getGame().getUsers());
+
+        if (!ring.fence(gen, play.getUser())) {
+            return false;
+        }
+
+        HashMap<String, String> head = new HashMap<String, String>();
+        head.put("gen", Long.toString(gen));
+
+        HashMap<User, Message> answers;
+
+        synchronized (this) {
+            replies = new HashMap<User, Message>();
+            proposal = gen;
+        }
+
+        IPC.sendMessage(play, others, MessageType.TOKEN_PROBE, head, crashed, false);
+
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + Config.probeTimeout;
+
+            while (!replies.keySet().containsAll(others) && System.currentTimeMillis() < deadline) {
+                try {
+                    wait(Math.max(1, deadline - System.currentTimeMillis()));
+                } catch (InterruptedException exc) {
+                    exc.printStackTrace();
+                }
+            }
+
+            answers = replies;
+            replies = null;
+        }
+
+        boolean found = ring.holdsToken();
+        boolean busy = !answers.keySet().containsAll(others);
+
+        for (Message reply : answers.values()) {
+            found |= Boolean.parseBoolean(reply.getHead().get("holds")) || Long.parseLong(reply.getHead().get("generation")) >= gen;
+            busy |= Boolean.parseBoolean(reply.getHead().get("busy"));
+        }
+
+        boolean regenerate = !found && !busy;
+
+        // everybody drops the tokens held back before the new one exists, or lets them go on
+        head.put("regenerated", Boolean.toString(regenerate));
+        IPC.sendMessage(play, others, MessageType.TOKEN_RESOLVE, head, null, true);
+        ring.resolve(gen, play.getUser(), regenerate);
+
+        if (regenerate) {
+            ring.regenerate(gen);
+
+            synchronized (this) {
+                regenerated++;
+            }
+        }
+
+        return found || regenerate;
+    }
+
+    public void handleProbe(Message message) {
+        forget(message.getBodyAs(User.class));
+
+        MutualExclusion ring = play.getRing();
+        long gen = Long.parseLong(message.getHead().get("gen"));
+
+        HashMap<String, String> head = new HashMap<String, String>();
+        head.put("gen", Long.toString(gen));
+        head.put("busy", Boolean.toString(!ring.fence(gen, message.getSender())));
+        head.put("holds", Boolean.toString(ring.holdsToken()));
+        head.put("generation", Long.toString(ring.generation()));
+
+        IPC.sendMessage(play, message.getSender(), MessageType.TOKEN_PROBE_REPLY, head, null, false);
+    }
+
+    public synchronized void handleProbeReply(Message message) {
+        if (replies != null && Long.parseLong(message.getHead().get("gen")) == proposal) {
+            replies.put(message.getSender(), message);
+            notifyAll();
+        }
+    }
+
+    public void handleResolve(Message message) {
+        play.getRing().resolve(Long.parseLong(message.getHead().get("gen")), message.getSender(),
+                Boolean.parseBoolean(message.getHead().get("regenerated")));
+    }
+
+    private synchronized boolean isRunning() {
+        return running;
+    }
+
+    public synchronized void exit() {
+        running = false;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("failures: %d detected, recovery avg %.0f ms, %d tokens regenerated, %d peers suspected, %d heartbeats",
+                failures, failures == 0 ? 0.0 : (double) recoveryMillis / failures, regenerated, suspected, heartbeats);
+    }
+}
@@ -0,0 +1,54 @@
+// Consistent hashing of the registry keys (game names, user address-ports) onto the server nodes
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+// each node owns Config.vnodes points of the ring and the keys hashed right before them:
+// adding a node moves only the keys it takes over
+class HashRing {
+    private String[] nodes;
+    private TreeMap<Long, String> points;
+
+    public HashRing(String[] nodes) {
+        this.nodes = new String[nodes.length];
+        points = new TreeMap<Long, String>();
+
+        for (int i = 0; i < nodes.length; i++) {
+            this.nodes[i] = url(nodes[i]);
+
+            for (int j = 0; j < Config.vnodes; j++) {
+                points.put(hash(this.nodes[i] + "#" + j), this.nodes[i]);
+            }
+        }
+    }
+
+    // comma separated list
+    public HashRing(String nodes) {
+        this(nodes.split(","));
+    }
+
+    static String url(String node) {
+        node = node.trim();
+        return node.endsWith("/") ? node : node + "/";
+    }
+
+    // FNV-1a, then mixed: the points of a node are spread even for similar names
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+
+        return LongMap.mix(hash);
+    }
+
+    public String owner(String key) {
+        Map.Entry<Long, String> entry = points.ceilingEntry(hash(key));
+        return (entry == null ? points.firstEntry() : entry).getValue();
+    }
+
+    public String[] getNodes() { return nodes.clone(); }
+}
@@ -2,12 +2,21 @@
 
 import java.io.*;
 import java.net.*;
-import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+interface ServerTransport {
+    void exit();
+    void join() throws InterruptedException;
+}
 
-class Server extends Thread {
+class Server extends Thread implements ServerTransport {
     ServerSocket serverSocket;
     MessageQueue queue;
 
@@ -69,13 +78,15 @@ class ServerChild extends Thread {
     Socket socket;
     DataInputStream dataInputStream;
     MessageQueue queue;
+    MessageCodec codec;
 
     ServerChild(Socket socket, MessageQueue queue) {
         this.socket = socket;
         this.queue = queue;
+        codec = Codecs.get();
 
         try {
-            dataInputStream = new DataInputStream(socket.getInputStream());
+            dataInputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
         } catch (IOException exc) {
             exc.printStackTrace();
         }
@@ -86,12 +97,12 @@ class ServerChild extends Thread {
     public void run() {
     	while (true) {
             try {
-                String message = dataInputStream.readUTF();
-                queue.push((Message) Json.fromJson(message, Message.class));
+                queue.push(codec.read(dataInputStream));
             } catch (EOFException exc) {
                 // exc.printStackTrace();
                 break;
-            } catch (IOException exc) {
+            } catch (IOException | RuntimeException exc) {
+                // a broken stream, or a frame we cannot make sense of: only this connection is dropped
                 exc.printStackTrace();
                 break;
             }
@@ -105,156 +116,276 @@ class ServerChild extends Thread {
     }
 }
 
-class SocketList {
-    private ArrayList<Socket> sockets;
+class Connection {
+    private Socket socket;
+    private DataOutputStream dataOutputStream;
+    private AtomicInteger busy;     // writers using the connection, -1 once closed
+    private volatile long lastUsed;
 
-    public SocketList() {
-        sockets = new ArrayList<Socket>();
+    public Connection(Socket socket) throws IOException {
+        this.socket = socket;
+        dataOutputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        busy = new AtomicInteger(0);
+        lastUsed = System.currentTimeMillis();
     }
 
-    public synchronized void add(Socket socket) {
-        sockets.add(socket);
+    public DataOutputStream getOutput() { return dataOutputStream; }
+    public long getLastUsed() { return lastUsed; }
+
+    public boolean acquire() {
+        while (true) {
+            int count = busy.get();
+
+            if (count < 0) {
+                return false;
+            }
+
+            if (busy.compareAndSet(count, count + 1)) {
+                lastUsed = System.currentTimeMillis();
+                return true;
+            }
+        }
     }
 
-    public synchronized void close(AddressPort key) {
-        Iterator<Socket> iter = sockets.iterator();
+    public void release() {
+        lastUsed = System.currentTimeMillis();
+        busy.decrementAndGet();
+    }
 
-        while (iter.hasNext()) {
-            Socket socket = iter.next();
+    public boolean isClosed() {
+        return busy.get() < 0;
+    }
 
-            if (key.equals(new AddressPort(socket.getInetAddress().getHostAddress(), socket.getPort()))) {
-                try {
-                    socket.close();
-                } catch (IOException exc) {
-                    exc.printStackTrace();
-                }
+    // closes the connection only if no writer is using it
+    public boolean closeIfIdle() {
+        if (busy.compareAndSet(0, -1)) {
+            closeSocket();
+            return true;
+        }
+        return false;
+    }
 
-                iter.remove();
-                break;
+    public void close() {
+        busy.set(-1);
+        closeSocket();
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException exc) {
+            exc.printStackTrace();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return socket.toString();
+    }
+}
+
+// outbound connections by destination, lookups are lock-free
+class ConnectionPool {
+    private ConcurrentHashMap<AddressPort, CopyOnWriteArrayList<Connection>> connections;
+    private int peerCap;
+
+    private AtomicLong hits;
+    private AtomicLong misses;
+    private AtomicLong evictions;
+    private AtomicLong failures;    // connection attempts that failed
+    private AtomicLong dropped;     // messages given up on, the destination never answered
+
+    public ConnectionPool(int peerCap) {
+        connections = new ConcurrentHashMap<AddressPort, CopyOnWriteArrayList<Connection>>();
+        this.peerCap = Math.max(1, peerCap);
+
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+        evictions = new AtomicLong();
+        failures = new AtomicLong();
+        dropped = new AtomicLong();
+    }
+
+    // an open connection to key already acquired by the caller, null if there is none
+    public Connection acquire(AddressPort key) {
+        CopyOnWriteArrayList<Connection> list = connections.get(key);
+
+        if (list != null) {
+            for (Connection connection : list) {
+                if (connection.acquire()) {
+                    hits.incrementAndGet();
+                    return connection;
+                }
             }
         }
+
+        misses.incrementAndGet();
+        return null;
     }
 
-    public synchronized void closeAll() {
-        Iterator<Socket> iter = sockets.iterator();
+    // like acquire, but opens a new connection if there is none
+    public Connection open(AddressPort key) throws IOException {
+        Connection connection = acquire(key);
 
-        while (iter.hasNext()) {
-            Socket socket = iter.next();
+        if (connection == null) {
+            Socket socket = new Socket();
 
             try {
-                socket.close();
+                socket.connect(new InetSocketAddress(key.getAddress(), key.getPort()), (int) Config.connectTimeout);
+                socket.setTcpNoDelay(true);
+
+                connection = new Connection(socket);
+                connection.acquire();
             } catch (IOException exc) {
-                exc.printStackTrace();
+                // refused or timed out
+                failures.incrementAndGet();
+                socket.close();
+                throw exc;
             }
 
-            iter.remove();
+            add(key, connection);
         }
+
+        return connection;
     }
 
-    public synchronized boolean contains(AddressPort key) {
-        Iterator<Socket> iter = sockets.iterator();
+    public void add(AddressPort key, Connection connection) {
+        connections.compute(key, (k, list) -> {
+            if (list == null) {
+                list = new CopyOnWriteArrayList<Connection>();
+            }
 
-        while (iter.hasNext()) {
-            Socket socket = iter.next();
+            list.removeIf(Connection::isClosed);
 
-            if (key.equals(new AddressPort(socket.getInetAddress().getHostAddress(), socket.getPort()))) {
-                return true;
+            // over the cap the least recently used connection makes room
+            while (list.size() >= peerCap) {
+                Connection lru = list.get(0);
+
+                for (Connection tmp : list) {
+                    if (tmp.getLastUsed() < lru.getLastUsed()) {
+                        lru = tmp;
+                    }
+                }
+
+                lru.close();
+                list.remove(lru);
+                evictions.incrementAndGet();
             }
-        }
 
-        return false;
+            list.add(connection);
+            return list;
+        });
     }
 
-    public synchronized Socket get(AddressPort key) {
-        Iterator<Socket> iter = sockets.iterator();
+    public void remove(AddressPort key, Connection connection) {
+        connection.close();
+
+        connections.computeIfPresent(key, (k, list) -> {
+            list.remove(connection);
+            return list.isEmpty() ? null : list;
+        });
+    }
 
-        while (iter.hasNext()) {
-            Socket socket = iter.next();
+    public void close(AddressPort key) {
+        CopyOnWriteArrayList<Connection> list = connections.remove(key);
 
-            if (key.equals(new AddressPort(socket.getInetAddress().getHostAddress(), socket.getPort()))) {
-                return socket;
+        if (list != null) {
+            for (Connection connection : list) {
+                connection.close();
             }
         }
+    }
 
-        return null;
+    public void closeAll() {
+        for (AddressPort key : connections.keySet()) {
+            close(key);
+        }
     }
 
-    public synchronized Socket remove(AddressPort key) {
-        Iterator<Socket> iter = sockets.iterator();
+    public void evictIdle(long idleMillis) {
+        long deadline = System.currentTimeMillis() - idleMillis;
 
-        while (iter.hasNext()) {
-            Socket socket = iter.next();
+        for (AddressPort key : connections.keySet()) {
+            connections.computeIfPresent(key, (k, list) -> {
+                for (Connection connection : list) {
+                    if (connection.getLastUsed() < deadline && connection.closeIfIdle()) {
+                        evictions.incrementAndGet();
+                    }
+                }
 
-            if (key.equals(new AddressPort(socket.getInetAddress().getHostAddress(), socket.getPort()))) {
-                iter.remove();
-                return socket;
-            }
+                list.removeIf(Connection::isClosed);
+                return list.isEmpty() ? null : list;
+            });
         }
-
-        return null;
     }
 
+    public long getHits() { return hits.get(); }
+    public long getMisses() { return misses.get(); }
+    public long getEvictions() { return evictions.get(); }
+
+    public void dropped(int count) { dropped.addAndGet(count); }
+
     @Override
-    public synchronized String toString() {
-        return sockets.toString();
+    public String toString() {
+        return String.format("%s (reused %d, opened %d, evicted %d, failed %d, dropped %d messages)",
+                connections.keySet(), hits.get(), misses.get(), evictions.get(), failures.get(), dropped.get());
     }
 }
 
 class Client extends Thread {
-    SocketList sockets;
+    ConnectionPool pool;
     MessageQueue queue;
+    HashMap<AddressPort, ClientWriter> writers;
 
-    public Client(MessageQueue queue) {
-        sockets = new SocketList();
+    Links links;
+
+    public Client(MessageQueue queue, Links links) {
+        pool = new ConnectionPool(Config.poolPeerCap);
         this.queue = queue;
+        this.links = links;
+        writers = new HashMap<AddressPort, ClientWriter>();
 
         start();
     }
 
     public void run() {
-        ArrayList<ClientChild> children = new ArrayList<ClientChild>();
-
-        while (true) {
-            // clean up
-            Iterator<ClientChild> iter = children.iterator();
+        ArrayList<Message> batch = new ArrayList<Message>();
+        boolean running = true;
+        long sweep = System.currentTimeMillis();
 
-            while (iter.hasNext()) {
-                ClientChild child = iter.next();
+        while (running) {
+            queue.drainTo(batch);
 
-                if (child.getState() == Thread.State.TERMINATED) {
-                    iter.remove();
+            for (Message message : batch) {
+                if (message == null) {
+                    running = false;
+                    break;
                 }
-            }
 
-            Message message = queue.pop();
+                AddressPort key = new AddressPort(message.getRecipient().getAddress(), message.getRecipient().getPort());
 
-            if (message == null) {
-                break;
+                writer(key).push(message);
             }
 
-            AddressPort key = new AddressPort(message.getRecipient().getAddress(), message.getRecipient().getPort());
-
-            Socket socket = null;
+            batch.clear();
 
-            if (sockets.contains(key)) {
-                socket = sockets.get(key);
-            } else {
-                try {
-                    socket = new Socket(key.getAddress(), key.getPort());
-                } catch (ConnectException exc) {
-                    // exc.printStackTrace();
-                    continue;
-                } catch (IOException exc) {
-                    exc.printStackTrace();
-                    continue;
-                }
-                sockets.add(socket);
+            // clean up
+            if (System.currentTimeMillis() - sweep > Config.poolIdleMillis / 2) {
+                pool.evictIdle(Config.poolIdleMillis);
+                sweep = System.currentTimeMillis();
             }
+        }
+
+        ArrayList<ClientWriter> children;
 
-            children.add(new ClientChild(socket, message));
+        synchronized (writers) {
+            children = new ArrayList<ClientWriter>(writers.values());
+            writers.clear();
         }
 
-        for (ClientChild child : children) {
+        for (ClientWriter child : children) {
+            child.exit();
+
             try {
                 child.join();
             } catch (InterruptedException exc) {
@@ -262,106 +393,361 @@ class Client extends Thread {
             }
         }
 
-        sockets.closeAll();
+        pool.closeAll();
     }
 
     public void exit() {
         queue.push(null);
     }
 
+    public ConnectionPool getPool() {
+        return pool;
+    }
+
+    // opens the connection to user in the background, so the first message doesn't pay for it
+    public void prewarm(User user) {
+        writer(new AddressPort(user.getAddress(), user.getPort())).push(ClientWriter.WARM);
+    }
+
+    // whether user still accepts connections, the connection is kept for the messages that follow
+    public void probe(User user) throws IOException {
+        pool.open(new AddressPort(user.getAddress(), user.getPort())).release();
+    }
+
+    private ClientWriter writer(AddressPort key) {
+        synchronized (writers) {
+            ClientWriter writer = writers.get(key);
+
+            if (writer == null) {
+                writer = new ClientWriter(key, pool, links);
+                writers.put(key, writer);
+            }
+
+            return writer;
+        }
+    }
+
     public void closeSocket(AddressPort key) {
-        sockets.close(key);
-        // sockets.remove(key);
+        ClientWriter writer;
+
+        synchronized (writers) {
+            writer = writers.remove(key);
+        }
+
+        // let the writer flush what is already queued for this peer
+        if (writer != null) {
+            writer.exit();
+
+            try {
+                writer.join();
+            } catch (InterruptedException exc) {
+                exc.printStackTrace();
+            }
+        }
+
+        pool.close(key);
     }
 }
 
-class ClientChild extends Thread {
-    Socket socket;
-    DataOutputStream dataOutputStream;
-    Message message;
+// one long-lived writer per destination, every batch is written with a single flush;
+// a slow or unreachable destination only holds up its own messages
+class ClientWriter extends Thread {
+    // asks for a connection ahead of the first message
+    static final Message WARM = new Message();
 
-    ClientChild(Socket socket, Message message) {
-        this.socket = socket;
-        this.message = message;
+    AddressPort key;
+    ConnectionPool pool;
+    Links links;
+    MessageQueue queue;
+    MessageCodec codec;
+
+    // waiting for a connection, retried with exponential backoff
+    ArrayDeque<Message> pending;
+    int attempts;
+    long backoff;
+    long retryAt;
+
+    // sequence numbers of the current connection
+    Connection current;
+    long epoch;
+    long seq;
+
+    ClientWriter(AddressPort key, ConnectionPool pool, Links links) {
+        this.key = key;
+        this.pool = pool;
+        this.links = links;
+        queue = new MessageQueue();
+        codec = Codecs.get();
+        pending = new ArrayDeque<Message>();
+
+        start();
+    }
+
+    public void run() {
+        ArrayList<Message> batch = new ArrayList<Message>();
+        boolean running = true;
+
+        while (running) {
+            boolean warm = false;
+
+            if (pending.isEmpty()) {
+                queue.drainTo(batch);
+            } else {
+                queue.poll(batch, retryAt - System.currentTimeMillis());
+            }
+
+            for (Message message : batch) {
+                if (message == null) {
+                    running = false;
+                    break;
+                }
+
+                if (message == WARM) {
+                    warm = true;
+                } else {
+                    pending.add(message);
+                }
+            }
+
+            batch.clear();
+
+            if (warm && pending.isEmpty() && running) {
+                Connection connection = connect();
+
+                if (connection != null) {
+                    connection.release();
+                }
+            }
+
+            // still backing off, unless we are leaving: one last attempt then
+            if (pending.isEmpty() || (running && System.currentTimeMillis() < retryAt)) {
+                continue;
+            }
+
+            Connection connection = connect();
+
+            if (connection != null && write(connection)) {
+                attempts = 0;
+                backoff = 0;
+                retryAt = 0;
+                pending.clear();
+                continue;
+            }
+
+            // refused or broken: the whole batch is written again on the next connection,
+            // the receiver drops the copies of what it already got (SeqWindow)
+            if (++attempts > Config.connectRetries || !running) {
+                pool.dropped(pending.size());
+                pending.clear();
+                attempts = 0;
+                backoff = 0;
+                retryAt = 0;
+            } else {
+                backoff = Math.min(Config.connectMaxBackoff, backoff == 0 ? Config.connectBackoff : 2 * backoff);
+                retryAt = System.currentTimeMillis() + backoff;
+            }
+        }
+    }
+
+    private boolean write(Connection connection) {
+        if (connection != current) {
+            current = connection;
+            epoch = links.newEpoch();
+            seq = 0;
+        }
 
         try {
-            dataOutputStream = new DataOutputStream(socket.getOutputStream());
+            for (Message message : pending) {
+                links.stamp(message, epoch, ++seq);
+                codec.write(connection.getOutput(), message);
+            }
+
+            connection.getOutput().flush();
+            return true;
         } catch (IOException exc) {
             exc.printStackTrace();
+            pool.remove(key, connection);
+            return false;
+        } finally {
+            connection.release();
         }
-
-        start();
     }
 
-    public void run() {
+    private Connection connect() {
         try {
-            dataOutputStream.writeUTF(Json.toJson(message));
+            return pool.open(key);
         } catch (IOException exc) {
-            exc.printStackTrace();
+            // retried later
+            return null;
         }
     }
+
+    public void push(Message message) {
+        queue.push(message);
+    }
+
+    public void exit() {
+        queue.push(null);
+    }
 }
 
 class IPC {
-    private static final int padding = 1 + (int) Math.log10(Long.MAX_VALUE);
-    private static long ackCounter = 0;
-
     // single recipient
-    public static void sendMessage(PlayGame play, User recipient, MessageType type, HashMap<String, String> head, String body, boolean ackFlag) {
-        Message message = new Message();
-        message.setType(type);
-        message.setSender(play.getUser());
-        message.setRecipient(recipient);
-        message.setHead(head);
-        message.setBody(body);
-
-        String ackIdx;
-
-        synchronized (IPC.class) {
-            ackCounter = 1 + ackCounter % Long.MAX_VALUE;
-            ackIdx = String.format("%0" + padding + "d.%0" + padding + "d", Instant.now().toEpochMilli(), ackCounter);
-        }
+    public static boolean sendMessage(PlayGame play, User recipient, MessageType type, HashMap<String, String> head, Object body, boolean ackFlag) {
+        Message message = createMessage(play, recipient, type, head, body);
 
+        long ackIdx = play.getAckTable().nextSeq();
         message.setAckIdx(ackIdx);
+        message.setPeerSeq(play.getAckTable().nextSeq(recipient));
+
+        Acknowledgment ack = null;
 
         if (ackFlag) {
-            play.getAckMap().put(ackIdx, new SingleAck());
+            message.setAckRequested(true);
+
+            ack = new SingleAck(recipient);
+            ack.setSeq(recipient, message.getPeerSeq());
+            play.getAckTable().put(ackIdx, ack, message);
         }
 
         play.getOQueue().push(message);
 
-        if (ackFlag) {
-            play.getAckMap().get(ackIdx).requestAck();
-        }
+        return !ackFlag || awaitAck(play, ackIdx, ack);
     }
 
     // multiple recipient
-    public static void sendMessage(PlayGame play, ArrayList<User> recipient, MessageType type, HashMap<String, String> head, String body, boolean ackFlag) {
-        String ackIdx;
+    public static boolean sendMessage(PlayGame play, ArrayList<User> recipient, MessageType type, HashMap<String, String> head, Object body, boolean ackFlag) {
+        long ackIdx = play.getAckTable().nextSeq();
 
-        synchronized (IPC.class) {
-            ackCounter = 1 + ackCounter % Long.MAX_VALUE;
-            ackIdx = String.format("%0" + padding + "d.%0" + padding + "d", Instant.now().toEpochMilli(), ackCounter);
+        Message prototype = createMessage(play, null, type, head, body);
+        prototype.setAckIdx(ackIdx);
+
+        // header and body are encoded once, each copy only adds its recipient
+        byte[] shared = null;
+
+        if (!recipient.isEmpty()) {
+            try {
+                shared = Codecs.get().encodeShared(prototype);
+            } catch (IOException exc) {
+                exc.printStackTrace();
+            }
         }
 
+        Acknowledgment ack = null;
+
         if (ackFlag) {
-            play.getAckMap().put(ackIdx, new MultipleAck(recipient.size()));
+            ack = new MultipleAck(recipient);
+            play.getAckTable().put(ackIdx, ack, prototype);
         }
 
         for (User user : recipient) {
-            Message message = new Message();
-            message.setType(type);
-            message.setSender(play.getUser());
-            message.setRecipient(user);
-            message.setHead(head);
-            message.setBody(body);
+            Message message = createMessage(play, user, type, head, null);
             message.setAckIdx(ackIdx);
+            message.setPeerSeq(play.getAckTable().nextSeq(user));
+            message.setAckRequested(ackFlag);
+
+            if (ack != null) {
+                ack.setSeq(user, message.getPeerSeq());
+            }
+
+            if (shared != null) {
+                message.setContent(prototype.getContent());
+                message.setShared(shared);
+            } else {
+                // the JSON text is at least serialized only once
+                message.setBody(prototype.getBody());
+            }
 
             play.getOQueue().push(message);
         }
 
-        if (ackFlag) {
-            play.getAckMap().get(ackIdx).requestAck();
+        return !ackFlag || awaitAck(play, ackIdx, ack);
+    }
+
+    // one acknowledged heartbeat on the link we already have, never retransmitted: whether user answers within timeout
+    public static boolean ping(PlayGame play, User user, long timeout) {
+        Message message = createMessage(play, user, MessageType.HEARTBEAT, null, null);
+
+        long ackIdx = play.getAckTable().nextSeq();
+        message.setAckIdx(ackIdx);
+        message.setPeerSeq(play.getAckTable().nextSeq(user));
+        message.setAckRequested(true);
+
+        Acknowledgment ack = new SingleAck(user);
+        play.getAckTable().put(ackIdx, ack, message);
+
+        play.getOQueue().push(message);
+
+        boolean answered = ack.requestAck(timeout);
+        play.getAckTable().remove(ackIdx);
+
+        return answered;
+    }
+
+    // the acknowledgment leaves with the next message to the sender, or alone after a short delay
+    public static void acknowledge(PlayGame play, Message message) {
+        play.getLinks().owe(message);
+    }
+
+    // waits for the acknowledgments, retransmitting to the recipients still missing when the timeout expires;
+    // false if some recipient never acknowledged: it is reported to the failure detector
+    private static boolean awaitAck(PlayGame play, long ackIdx, Acknowledgment ack) {
+        AckTable table = play.getAckTable();
+
+        for (int attempt = 0; !ack.requestAck(table.getTimeout(ack.getPending(), attempt)); attempt++) {
+            Message message = table.getRetained(ackIdx);
+
+            if (attempt >= Config.ackRetries || message == null) {
+                // the recipients are gone, don't hang the game
+                table.remove(ackIdx);
+
+                for (User user : ack.getPending()) {
+                    play.getDetector().suspect(user);
+                }
+                return false;
+            }
+
+            for (User user : ack.getPending()) {
+                ack.setRetransmitted(user);
+
+                Message copy = createMessage(play, user, message.getType(), message.getHead(), message.getContent());
+                copy.setAckIdx(ackIdx);
+                copy.setPeerSeq(ack.getSeq(user));
+                copy.setAckRequested(true);
+
+                if (message.getContent() == null) {
+                    copy.setBody(message.getBody());
+                }
+
+                play.getOQueue().push(copy);
+            }
+        }
+
+        table.remove(ackIdx);
+        return true;
+    }
+
+    private static Message createMessage(PlayGame play, User recipient, MessageType type, HashMap<String, String> head, Object body) {
+        Message message = new Message();
+        message.setType(type);
+        message.setSender(play.getUser());
+        message.setRecipient(recipient);
+        message.setHead(head);
+        setBody(message, body);
+
+        if (recipient != null) {
+            play.getDetector().sent(recipient);
+        }
+
+        return message;
+    }
+
+    // JSON text is kept as is, any other body is encoded by the codec
+    private static void setBody(Message message, Object body) {
+        if (body instanceof String) {
+            message.setBody((String) body);
+        } else {
+            message.setContent(body);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,361 @@
+// Durable registry: journal of the changes plus a periodic snapshot
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.TreeMap;
+
+enum JournalOp {
+    ADD_USER,
+    REMOVE_USER,
+    ADD_GAME,
+    REMOVE_GAME,
+    JOIN_GAME,
+    LEAVE_GAME,
+}
+
+// replaying an entry twice has no effect, so a snapshot may already contain some of the entries replayed after it
+class JournalEntry {
+    private JournalOp op;
+    private String name;    // game name
+    private User user;      // only the name for LEAVE_GAME, only address and port for REMOVE_USER
+    private Game game;      // ADD_GAME
+
+    public JournalEntry() {}
+
+    public JournalEntry(JournalOp op, String name, User user, Game game) {
+        this.op = op;
+        this.name = name;
+        this.user = user;
+        this.game = game;
+    }
+
+    public JournalOp getOp() { return op; }
+    public void setOp(JournalOp value) { op = value; }
+
+    public String getName() { return name; }
+    public void setName(String string) { name = string; }
+
+    public User getUser() { return user; }
+    public void setUser(User value) { user = value; }
+
+    public Game getGame() { return game; }
+    public void setGame(Game value) { game = value; }
+}
+
+// the registry as of the beginning of a journal segment
+class RegistrySnapshot {
+    private long segment;
+    private User[] users;
+    private Game[] games;
+
+    public RegistrySnapshot() {}
+
+    public RegistrySnapshot(long segment, User[] users, Game[] games) {
+        this.segment = segment;
+        this.users = users;
+        this.games = games;
+    }
+
+    public long getSegment() { return segment; }
+    public void setSegment(long number) { segment = number; }
+
+    public User[] getUsers() { return users; }
+    public void setUsers(User[] array) { users = array; }
+
+    public Game[] getGames() { return games; }
+    public void setGames(Game[] array) { games = array; }
+}
+
+// the journal could not write: the change may not survive a restart
+class JournalException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public JournalException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
+
+// one writer thread: whatever is queued while an fsync is in progress goes to disk with the next one.
+// files in dir: journal-<segment> (int length | UTF-8 JSON entry, ...) and snapshot
+class Journal extends Thread {
+    private static final int MAX_ENTRY = 1 << 24;   // bytes
+
+    private File dir;
+    private Registry registry;
+
+    private ArrayList<JournalEntry> pending;
+    private long appended;          // sequence number of the last entry queued
+    private long synced;            // and of the last one on disk
+    private boolean running;
+    private IOException failure;    // the journal stopped writing, nothing is acknowledged anymore
+
+    private long segment;
+    private FileOutputStream file;
+    private DataOutputStream out;
+    private long sinceSnapshot;     // entries written in the current segment
+
+    // statistics
+    private long batches;
+    private long syncNanos;
+    private long snapshots;
+    private long replayed;
+    private long recoveryMillis;
+
+    public Journal(File dir, Registry registry) {
+        this.dir = dir;
+        this.registry = registry;
+        pending = new ArrayList<JournalEntry>();
+        running = true;
+
+        dir.mkdirs();
+
+        try {
+            recover();
+            openSegment(segment + 1);
+        } catch (IOException exc) {
+            exc.printStackTrace();
+            failure = exc;
+        }
+
+        setDaemon(true);
+        start();
+    }
+
+    private File journalFile(long number) {
+        return new File(dir, "journal-" + number);
+    }
+
+    /* **************************************** RECOVERY **************************************** */
+
+    private void recover() throws IOException {
+        long start = System.currentTimeMillis();
+        long first = 0;
+
+        File snapshotFile = new File(dir, "snapshot");
+
+        if (snapshotFile.exists()) {
+            RegistrySnapshot snapshot = Json.fromJson(Files.readAllBytes(snapshotFile.toPath()), RegistrySnapshot.class);
+            registry.restore(snapshot.getUsers(), snapshot.getGames());
+            first = snapshot.getSegment();
+        }
+
+        // the segments not covered by the snapshot, in order
+        TreeMap<Long, File> segments = new TreeMap<Long, File>();
+        File[] files = dir.listFiles();
+
+        if (files != null) {
+            for (File tmp : files) {
+                if (tmp.getName().startsWith("journal-")) {
+                    long number = Long.parseLong(tmp.getName().substring("journal-".length()));
+
+                    if (number >= first) {
+                        segments.put(number, tmp);
+                    }
+                }
+            }
+        }
+
+        segment = segments.isEmpty() ? first : segments.lastKey();
+
+        for (File tmp : segments.values()) {
+            replay(tmp);
+        }
+
+        recoveryMillis = System.currentTimeMillis() - start;
+
+        System.out.format("registry recovered from %s in %d ms: %d users, %d games, %d journal entries replayed\n",
+                dir, recoveryMillis, registry.getUsers().size(), registry.getGames().size(), replayed);
+    }
+
+    private void replay(File journal) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)))) {
+            while (true) {
+                int length = in.readInt();
+
+                // a torn length, taken as the end of the segment like any other torn entry
+                if (length <= 0 || length > MAX_ENTRY) {
+                    break;
+                }
+
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+
+                JournalEntry entry = Json.fromJson(bytes, JournalEntry.class);
+
+                if (entry.getOp() == null) {
+                    break;
+                }
+
+                registry.replay(entry);
+                replayed++;
+            }
+        } catch (EOFException | CodecException exc) {
+            // end of the segment, or an entry torn by a crash: it was never acknowledged
+        }
+    }
+
+    /* **************************************** WRITING **************************************** */
+
+    private void openSegment(long number) throws IOException {
+        if (out != null) {
+            out.close();
+        }
+
+        segment = number;
+        file = new FileOutputStream(journalFile(number));
+        out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+        sinceSnapshot = 0;
+    }
+
+    // changes are refused once the journal has failed
+    public synchronized void check() {
+        if (failure != null) {
+            throw new JournalException("the journal stopped writing", failure);
+        }
+    }
+
+    // queues an entry, its sequence number is to be passed to await
+    public synchronized long append(JournalEntry entry) {
+        check();
+
+        pending.add(entry);
+        appended++;
+        notifyAll();
+
+        return appended;
+    }
+
+    // waits until the entry seq is on disk
+    public synchronized void await(long seq) {
+        while (synced < seq && running && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException exc) {
+                exc.printStackTrace();
+            }
+        }
+
+        if (synced < seq) {
+            throw new JournalException("entry " + seq + " is not on disk", failure);
+        }
+    }
+
+    public void run() {
+        while (true) {
+            ArrayList<JournalEntry> batch;
+            long last;
+
+            synchronized (this) {
+                while (pending.isEmpty() && running) {
+                    try {
+                        wait();
+                    } catch (InterruptedException exc) {
+                        exc.printStackTrace();
+                    }
+                }
+
+                if (pending.isEmpty()) {
+                    break;
+                }
+
+                batch = pending;
+                pending = new ArrayList<JournalEntry>();
+                last = appended;
+            }
+
+            long start = System.nanoTime();
+
+            try {
+                for (JournalEntry entry : batch) {
+                    byte[] bytes = Json.toBytes(entry);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+
+                out.flush();
+                file.getChannel().force(false);
+            } catch (IOException exc) {
+                exc.printStackTrace();
+
+                // maybe partly written: the waiters fail, and so does every change from now on
+                synchronized (this) {
+                    failure = exc;
+                    notifyAll();
+                }
+                break;
+            }
+
+            synchronized (this) {
+                synced = last;
+                batches++;
+                syncNanos += System.nanoTime() - start;
+                notifyAll();
+            }
+
+            sinceSnapshot += batch.size();
+
+            if (sinceSnapshot >= Config.snapshotEvery) {
+                snapshot();
+            }
+        }
+    }
+
+    // a new segment is started first: the entries of the old ones are all in the registry when it is copied
+    private void snapshot() {
+        try {
+            openSegment(segment + 1);
+
+            RegistrySnapshot snapshot = new RegistrySnapshot(segment,
+                    registry.getUsers().toArray(new User[0]), registry.getGames().toArray(new Game[0]));
+
+            File tmp = new File(dir, "snapshot.tmp");
+
+            try (FileOutputStream stream = new FileOutputStream(tmp)) {
+                stream.write(Json.toBytes(snapshot));
+                stream.getChannel().force(false);
+            }
+
+            Files.move(tmp.toPath(), new File(dir, "snapshot").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            // the older segments are not needed anymore
+            File[] files = dir.listFiles();
+
+            if (files != null) {
+                for (File file : files) {
+                    if (file.getName().startsWith("journal-")
+                            && Long.parseLong(file.getName().substring("journal-".length())) < segment) {
+                        file.delete();
+                    }
+                }
+            }
+
+            synchronized (this) {
+                snapshots++;
+            }
+        } catch (IOException | CodecException exc) {
+            exc.printStackTrace();
+        }
+    }
+
+    public synchronized void exit() {
+        running = false;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("journal: %d entries in %d fsyncs (avg %.1f entries, %.2f ms), %d snapshots, recovery %d ms for %d entries",
+                synced, batches, batches == 0 ? 0.0 : (double) synced / batches,
+                batches == 0 ? 0.0 : syncNanos / 1e6 / batches, snapshots, recoveryMillis, replayed);
+    }
+}
@@ -0,0 +1,159 @@
+// Game list of the peers, kept up to date by the change feed of the server nodes
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// the games of every node: fetched once, then followed event by event instead of being asked for again
+class Lobby {
+    private static final long STARTUP = 2000;   // ms the first list waits for the nodes
+
+    private HashMap<String, HashMap<String, Game>> games;   // by node, then by name
+    private int starting;                                   // feeds that haven't answered yet
+
+    public Lobby(String[] nodes) {
+        games = new HashMap<String, HashMap<String, Game>>();
+        starting = nodes.length;
+
+        for (String node : nodes) {
+            games.put(node, new HashMap<String, Game>());
+            new LobbyFeed(this, node);
+        }
+    }
+
+    public synchronized Game[] getGames() {
+        long deadline = System.currentTimeMillis() + STARTUP;
+
+        while (starting > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                wait(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException exc) {
+                exc.printStackTrace();
+            }
+        }
+
+        ArrayList<Game> list = new ArrayList<Game>();
+
+        for (HashMap<String, Game> map : games.values()) {
+            for (Game game : map.values()) {
+                list.add(new Game(game));
+            }
+        }
+
+        return list.toArray(new Game[0]);
+    }
+
+    // a feed answered for the first time, with the list or not
+    synchronized void started() {
+        starting--;
+        notifyAll();
+    }
+
+    // the whole list of node: first time, node restarted, or too many events missed
+    synchronized void reload(String node, Game[] array) {
+        HashMap<String, Game> map = new HashMap<String, Game>();
+
+        for (Game game : array) {
+            map.put(game.getName(), new Game(game));
+        }
+
+        games.put(node, map);
+    }
+
+    // applying an event twice has no effect: the list fetched on a reload may already contain some of the next ones
+    synchronized void apply(String node, Event event) {
+        HashMap<String, Game> map = games.get(node);
+        Game game = map.get(event.getGame());
+
+        switch (event.getType()) {
+            case GAME_CREATED:
+                if (game == null && event.getInfo() != null) {
+                    map.put(event.getGame(), new Game(event.getInfo()));
+                }
+                break;
+
+            case GAME_REMOVED:
+            case GAME_MOVED:
+                map.remove(event.getGame());
+                break;
+
+            case USER_JOINED:
+                if (game != null && find(game, event.getUser().getName()) == null) {
+                    game.getUsers().add(event.getUser());
+                }
+                break;
+
+            case USER_LEFT:
+                if (game != null) {
+                    game.getUsers().remove(find(game, event.getUser().getName()));
+                }
+                break;
+        }
+    }
+
+    private static User find(Game game, String name) {
+        for (User user : game.getUsers()) {
+            if (user.getName().equals(name)) {
+                return user;
+            }
+        }
+        return null;
+    }
+}
+
+// long polls the events of one node
+class LobbyFeed extends Thread {
+    private static final long RETRY = 1000;     // ms, while the node doesn't answer
+
+    private Lobby lobby;
+    private String node;
+
+    public LobbyFeed(Lobby lobby, String node) {
+        this.lobby = lobby;
+        this.node = node;
+
+        setDaemon(true);
+        start();
+    }
+
+    public void run() {
+        long since = -1;    // asks for the whole list first
+        boolean started = false;
+
+        while (true) {
+            EventBatch batch = SRC.events(node, since);
+            Game[] array = null;
+
+            if (batch != null && batch.getReset()) {
+                // fetched after the batch: it has every event up to last, maybe some more
+                array = SRC.gameList(node);
+
+                if (array != null) {
+                    lobby.reload(node, array);
+                }
+            } else if (batch != null) {
+                for (Event event : batch.getEvents()) {
+                    lobby.apply(node, event);
+                }
+            }
+
+            boolean answered = batch != null && (!batch.getReset() || array != null);
+
+            if (!started) {
+                started = true;
+                lobby.started();
+            }
+
+            if (answered) {
+                since = batch.getLast();
+                continue;
+            }
+
+            // unreachable: the games we know of stay listed until it is back
+            try {
+                Thread.sleep(RETRY);
+            } catch (InterruptedException exc) {
+                exc.printStackTrace();
+            }
+        }
+    }
+}
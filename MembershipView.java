@@ -0,0 +1,158 @@
+// Versioned ring membership
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+// every change bumps the epoch, members exchange the changes and fetch the whole view only if they missed one
+class MembershipView {
+    private ArrayList<User> users;  // in ring order: the next of each user is the following one
+    private long epoch;
+    private HashSet<User> failed;   // crashed, skipped until a view change removes them
+
+    public MembershipView() {
+        users = new ArrayList<User>();
+        epoch = 0;
+        failed = new HashSet<User>();
+    }
+
+    public MembershipView(User user) {
+        this();
+        users.add(user);
+    }
+
+    public MembershipView(MembershipView view) {
+        this();
+
+        synchronized (view) {
+            users = view.live();
+            epoch = view.epoch;
+        }
+    }
+
+    public synchronized User[] getUsers() { return live().toArray(new User[0]); }
+    public synchronized void setUsers(User[] array) { users = new ArrayList<User>(Arrays.asList(array)); }
+
+    public synchronized long getEpoch() { return epoch; }
+    public synchronized void setEpoch(long number) { epoch = number; }
+
+    // user enters the ring right before sponsor
+    public synchronized ViewChange add(User user, User sponsor) {
+        ViewChange change = new ViewChange(epoch + 1, user, sponsor, null);
+        apply(change);
+        return change;
+    }
+
+    // user crashed
+    public synchronized ViewChange remove(User user) {
+        ViewChange change = new ViewChange(epoch + 1, null, null, user);
+        apply(change);
+        return change;
+    }
+
+    // applies a change made by another member, false if some change was missed before it
+    public synchronized boolean apply(ViewChange change) {
+        if (change.getEpoch() < epoch) {
+            return true;
+        }
+
+        boolean missed = change.getEpoch() > epoch + 1;
+
+        if (change.getRemoved() != null) {
+            users.remove(change.getRemoved());
+            failed.remove(change.getRemoved());
+        }
+
+        if (change.getAdded() != null && !users.contains(change.getAdded())) {
+            int i = users.indexOf(change.getSponsor());
+            users.add(i < 0 ? users.size() : i, change.getAdded());
+        }
+
+        epoch = change.getEpoch();
+
+        return !missed;
+    }
+
+    // replaces this view with a newer one
+    public synchronized void install(MembershipView view) {
+        if (view.getEpoch() > epoch) {
+            users = new ArrayList<User>(Arrays.asList(view.getUsers()));
+            epoch = view.getEpoch();
+        }
+    }
+
+    // user crashed: messages and token go around it until the view change removing it is made
+    public synchronized void fail(User user) {
+        if (users.contains(user)) {
+            failed.add(user);
+        }
+    }
+
+    public synchronized User prev(User user) {
+        return step(user, users.size() - 1);
+    }
+
+    public synchronized User next(User user) {
+        return step(user, 1);
+    }
+
+    // the closest member that didn't crash, in the given direction
+    private User step(User user, int direction) {
+        int i = users.indexOf(user);
+
+        for (int j = 1; i >= 0 && j <= users.size(); j++) {
+            User tmp = users.get((i + j * direction) % users.size());
+
+            if (!failed.contains(tmp)) {
+                return tmp;
+            }
+        }
+        return null;
+    }
+
+    private ArrayList<User> live() {
+        ArrayList<User> list = new ArrayList<User>(users);
+        list.removeAll(failed);
+        return list;
+    }
+
+    // everybody but user, in ring order
+    public synchronized ArrayList<User> others(User user) {
+        ArrayList<User> list = live();
+        list.remove(user);
+        return list;
+    }
+}
+
+// a member entered the ring right before its sponsor, or left it
+class ViewChange {
+    private long epoch;
+    private User added;
+    private User sponsor;
+    private User removed;
+    private boolean quit;   // removed left on its own, not killed
+
+    public ViewChange() {}
+
+    public ViewChange(long epoch, User added, User sponsor, User removed) {
+        this.epoch = epoch;
+        this.added = added;
+        this.sponsor = sponsor;
+        this.removed = removed;
+    }
+
+    public long getEpoch() { return epoch; }
+    public void setEpoch(long number) { epoch = number; }
+
+    public User getAdded() { return added; }
+    public void setAdded(User user) { added = user; }
+
+    public User getSponsor() { return sponsor; }
+    public void setSponsor(User user) { sponsor = user; }
+
+    public User getRemoved() { return removed; }
+    public void setRemoved(User user) { removed = user; }
+
+    public boolean getQuit() { return quit; }
+    public void setQuit(boolean value) { quit = value; }
+}
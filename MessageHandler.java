@@ -1,58 +1,175 @@
 import java.io.IOException;
 import java.net.ConnectException;
-import java.net.Socket;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 class MessageHandler extends Thread {
+    // cheap control messages, handled directly by the dispatcher
+    // (and the ones whose acknowledgment tells the sender they were applied)
+    private static final EnumSet<MessageType> inline = EnumSet.of(MessageType.TOKEN, MessageType.TOKEN_REQUEST, MessageType.CS_REQUEST, MessageType.CS_REPLY, MessageType.HEARTBEAT, MessageType.TOKEN_PROBE, MessageType.TOKEN_PROBE_REPLY, MessageType.TOKEN_RESOLVE, MessageType.ACKNOWLEDGED, MessageType.POSITION_VALUE,
+            MessageType.RING_ENTRY_SUCCEEDED, MessageType.VIEW_CHANGE, MessageType.POSITION_MATCH, MessageType.BOMB_AREA_MATCH);
+
+    // acknowledged by their handler, once the answer is sent; any other message is acknowledged on receipt
+    static final EnumSet<MessageType> answered = EnumSet.of(MessageType.POSITION_CHECK, MessageType.BOMB_EXPLOSION, MessageType.GAME_OVER);
+
+    // waits for the critical section: kept out of its sender's lane and off the workers, so the messages that follow are not held up
+    private static final EnumSet<MessageType> detached = EnumSet.of(MessageType.RING_ENTRY_REQUEST);
+
     PlayGame play;
+    ThreadPoolExecutor workers;
+    ThreadPoolExecutor blocking;
+    ConcurrentHashMap<AddressPort, SerialLane> lanes;
+    ConcurrentHashMap<AddressPort, SeqWindow> windows;
+    MessageStats stats;
 
     public MessageHandler(PlayGame play) {
         this.play = play;
 
+        // lane handlers only wait for acks, which the dispatcher takes care of, so their pool can be bounded;
+        // the tasks that wait for the critical section, or for a writer to flush, get a thread each:
+        // on the workers, a few of them would starve the lanes that the token holder waits for
+        workers = new ThreadPoolExecutor(Config.handlerThreads, Config.handlerThreads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        workers.allowCoreThreadTimeOut(true);
+        blocking = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+        lanes = new ConcurrentHashMap<AddressPort, SerialLane>();
+        windows = new ConcurrentHashMap<AddressPort, SeqWindow>();
+        stats = new MessageStats();
+
         start();
     }
 
     public void run() {
-        ArrayList<MessageHandlerChild> children = new ArrayList<MessageHandlerChild>();
+        ArrayList<Message> batch = new ArrayList<Message>();
+        boolean running = true;
         // ArrayList<MessageType> types = new ArrayList<MessageType>();
 
-        while (true) {
-            // clean up
-            Iterator<MessageHandlerChild> iter = children.iterator();
+        while (running) {
+            play.getIQueue().drainTo(batch);
 
-            while (iter.hasNext()) {
-                MessageHandlerChild child = iter.next();
+            for (Message message : batch) {
+                if (message == null) {
+                    running = false;
+                    break;
+                }
 
-                if (child.getState() == Thread.State.TERMINATED) {
-                    iter.remove();
+                /*
+                if (play.getGameOver() && !types.contains(message.getType())) {
+                    // continue;
                 }
+                */
+
+                dispatch(message);
             }
 
-            Message message = play.getIQueue().pop();
+            batch.clear();
+        }
 
-            if (message == null) {
-                break;
-            }
+        workers.shutdown();
+        blocking.shutdown();
 
-            /*
-            if (play.getGameOver() && !types.contains(message.getType())) {
-                // continue;
+        try {
+            while (!workers.awaitTermination(1, TimeUnit.MINUTES) || !blocking.awaitTermination(1, TimeUnit.MINUTES)) {
+                // some handler is still running
             }
-            */
+        } catch (InterruptedException exc) {
+            exc.printStackTrace();
+        }
+    }
+
+    // messages from the same sender are handled in order, different senders in parallel
+    private void dispatch(Message message) {
+        AddressPort key = new AddressPort(message.getSender().getAddress(), message.getSender().getPort());
+
+        // releases what the sender acknowledged, piggybacked or not
+        play.getLinks().received(message);
 
-            children.add(new MessageHandlerChild(play, message));
+        // any message is a sign of life
+        play.getDetector().heard(message.getSender());
+
+        // a retransmission: our acknowledgment was lost, send it again
+        if (message.getType() != MessageType.ACKNOWLEDGED && !accept(key, message.getPeerSeq())) {
+            acknowledge(message);
+            return;
         }
 
-        for (MessageHandlerChild child : children) {
+        MessageHandlerChild child = new MessageHandlerChild(play, message, stats);
+
+        if (inline.contains(message.getType())) {
+            // like a lane, the dispatcher outlives a message it cannot handle: handling it again would fail again
             try {
-                child.join();
-            } catch (InterruptedException exc) {
+                child.run();
+            } catch (RuntimeException exc) {
                 exc.printStackTrace();
             }
+
+            acknowledge(message);
+            return;
         }
+
+        // a slow handler doesn't hold up the acknowledgment, the window above drops the retransmissions
+        if (!answered.contains(message.getType())) {
+            acknowledge(message);
+        }
+
+        if (detached.contains(message.getType())) {
+            blocking.execute(child);
+            return;
+        }
+
+        SerialLane lane = lanes.get(key);
+
+        if (lane == null) {
+            lane = new SerialLane(workers);
+            lanes.put(key, lane);
+        }
+
+        lane.execute(child);
+    }
+
+    // user left the game: its lane and window are not needed anymore
+    public void forget(User user) {
+        AddressPort key = new AddressPort(user.getAddress(), user.getPort());
+        lanes.remove(key);
+        windows.remove(key);
+    }
+
+    // the cumulative acknowledgment covers it from now on
+    private void acknowledge(Message message) {
+        play.getLinks().complete(message);
+
+        if (message.isAckRequested()) {
+            IPC.acknowledge(play, message);
+        }
+    }
+
+    // runs a blocking task off the dispatcher and the workers
+    public void background(Runnable task) {
+        blocking.execute(task);
+    }
+
+    private boolean accept(AddressPort key, long peerSeq) {
+        SeqWindow window = windows.get(key);
+
+        if (window == null) {
+            window = new SeqWindow();
+            windows.put(key, window);
+        }
+
+        return window.accept(peerSeq);
+    }
+
+    public MessageStats getStats() {
+        return stats;
     }
 
     public void exit() {
@@ -60,36 +177,151 @@ class MessageHandler extends Thread {
     }
 }
 
-class MessageHandlerChild extends Thread {
+// runs its tasks one at a time, in submission order, on the shared workers
+class SerialLane implements Runnable {
+    private Executor executor;
+    private ArrayDeque<Runnable> tasks;
+    private boolean active;
+
+    public SerialLane(Executor executor) {
+        this.executor = executor;
+        tasks = new ArrayDeque<Runnable>();
+        active = false;
+    }
+
+    public synchronized void execute(Runnable task) {
+        tasks.add(task);
+
+        if (!active) {
+            active = true;
+            executor.execute(this);
+        }
+    }
+
+    public void run() {
+        while (true) {
+            Runnable task;
+
+            synchronized (this) {
+                task = tasks.poll();
+
+                if (task == null) {
+                    active = false;
+                    return;
+                }
+            }
+
+            try {
+                task.run();
+            } catch (RuntimeException exc) {
+                exc.printStackTrace();
+            }
+        }
+    }
+}
+
+// handling time per message type
+class MessageStats {
+    private static final MessageType[] types = MessageType.values();
+
+    private LongAdder[] counts;
+    private LongAdder[] nanos;
+    private AtomicLong[] maxNanos;
+
+    public MessageStats() {
+        counts = new LongAdder[types.length];
+        nanos = new LongAdder[types.length];
+        maxNanos = new AtomicLong[types.length];
+
+        for (int i = 0; i < types.length; i++) {
+            counts[i] = new LongAdder();
+            nanos[i] = new LongAdder();
+            maxNanos[i] = new AtomicLong();
+        }
+    }
+
+    public void record(MessageType type, long elapsed) {
+        int i = type.ordinal();
+        counts[i].increment();
+        nanos[i].add(elapsed);
+        maxNanos[i].accumulateAndGet(elapsed, Math::max);
+    }
+
+    public long getCount(MessageType type) { return counts[type.ordinal()].sum(); }
+    public long getNanos(MessageType type) { return nanos[type.ordinal()].sum(); }
+    public long getMaxNanos(MessageType type) { return maxNanos[type.ordinal()].get(); }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+
+        for (MessageType type : types) {
+            long count = getCount(type);
+
+            if (count > 0) {
+                builder.append(String.format("%-30s %8d msgs, avg %8.3f ms, max %8.3f ms%n",
+                        type, count, getNanos(type) / 1e6 / count, getMaxNanos(type) / 1e6));
+            }
+        }
+
+        return builder.toString();
+    }
+}
+
+class MessageHandlerChild implements Runnable {
     private PlayGame play;
     private Message message;
+    private MessageStats stats;
 
-    public MessageHandlerChild(PlayGame play, Message message) {
+    public MessageHandlerChild(PlayGame play, Message message, MessageStats stats) {
         this.play = play;
         this.message = message;
-
-        start();
+        this.stats = stats;
     }
 
     public void run() {
+        long start = System.nanoTime();
+
+        try {
+            handle();
+        } finally {
+            if (MessageHandler.answered.contains(message.getType())) {
+                play.getLinks().complete(message);
+            }
+        }
+
+        stats.record(message.getType(), System.nanoTime() - start);
+    }
+
+    private void handle() {
         HashMap<String, String> head = new HashMap<String, String>();
         Position position;
         Bomb bomb;
-        Neighbors neighbors;
 
         switch (message.getType()) {
 
             case TOKEN:
+            case TOKEN_REQUEST:
+            case CS_REQUEST:
+            case CS_REPLY:
                 play.getRing().handleMessage(message);
                 break;
 
             case ACKNOWLEDGED:
-                String ackIdx = message.getHead().get("ackIdx");
-                play.getAckMap().get(ackIdx).releaseAck();
+            case HEARTBEAT:
+                // already taken into account by the dispatcher
+                break;
 
-                if (play.getAckMap().get(ackIdx).isReleased()) {
-                    play.getAckMap().remove(ackIdx);
-                }
+            case TOKEN_PROBE:
+                play.getDetector().handleProbe(message);
+                break;
+
+            case TOKEN_PROBE_REPLY:
+                play.getDetector().handleProbeReply(message);
+                break;
+
+            case TOKEN_RESOLVE:
+                play.getDetector().handleResolve(message);
                 break;
 
             case RING_ENTRY_REQUEST:
@@ -102,6 +334,8 @@ class MessageHandlerChild extends Thread {
                     return;
                 }
 
+                long start = System.nanoTime();
+
                 try {
                     if (!play.getGame().getUsers().contains(message.getSender())) {
                         // try to put a delay here and see what happens
@@ -114,11 +348,20 @@ class MessageHandlerChild extends Thread {
                         */
 
                         // make sure the user is still waiting to enter, this will launch a ConnectException if the user has already closed his ServerSocket
-                        (new Socket(message.getSender().getAddress(), message.getSender().getPort())).close();
+                        // (the connection stays in the pool for the snapshot)
+                        play.getClient().probe(message.getSender());
 
                         // update user list :: server side
 
-                        MessageType result = SRC.addUser(play.getGame().getName(), message.getSender());
+                        int grid = play.getGame().getGrid();
+                        MessageType result;
+
+                        // no free cell left for a start position
+                        if (2 + play.getGame().getUsers().size() > grid * grid) {
+                            result = MessageType.GAME_FULL;
+                        } else {
+                            result = SRC.addUser(play.getGame().getName(), message.getSender());
+                        }
 
                         if (result != MessageType.OK) {
                             switch (result) {
@@ -133,55 +376,51 @@ class MessageHandlerChild extends Thread {
                         } else {
                             // set user start position
 
-                            play.setPositionQueue(new PositionQueue(1 + play.getGame().getUsers().size()));
-                            play.getPositionQueue().push(play.getPosition());
-
-                            IPC.sendMessage(play, play.getGame().getUsers(), MessageType.POSITION_REQUEST, null, null, false);
-
-                            // waiting for positions...
-                            Position[] positions = play.getPositionQueue().pop();
+                            PositionIndex index = play.getRing().getIndex();
 
-                            CheckFunction<Position> checkPosition = (obj) -> {
-                                for (Position tmp : positions) {
-                                    if (tmp.equals(obj)) {
-                                        return false;
-                                    }
-                                }
-                                return true;
-                            };
+                            if (index != null) {
+                                index.put(play.getUser(), play.getPosition());
+                            }
 
-                            position = new Position(play.getGame().getGrid());
+                            if (index != null && index.knows(play.getGame().getUsers())) {
+                                position = index.freePosition(play.getGame().getGrid());
+                            } else {
+                                play.setPositionQueue(new PositionQueue(1 + play.getGame().getUsers().size()));
+                                play.getPositionQueue().push(play.getPosition());
 
-                            do {
-                                position.setRandomPosition();
-                            } while (!checkPosition.check(position));
+                                IPC.sendMessage(play, play.getGame().getUsers(), MessageType.POSITION_REQUEST, null, null, false);
 
-                            IPC.sendMessage(play, message.getSender(), MessageType.POSITION_UPDATE, null, Json.toJson(position), true);
+                                // waiting for positions...
+                                OccupancyGrid occupancy = new OccupancyGrid();
 
-                            // update neighbors
+                                for (Position tmp : play.getPositionQueue().pop()) {
+                                    occupancy.add(PositionIndex.cell(tmp));
+                                }
 
-                            IPC.sendMessage(play, message.getSender(), MessageType.NEIGHBORS_UPDATE, null, Json.toJson(new Neighbors(play.getPrev(), play.getUser())), true);
+                                position = occupancy.sample(play.getGame().getGrid());
+                            }
 
-                            if (play.getUser().equals(play.getPrev())) {
-                                play.setNext(message.getSender());
-                            } else {
-                                IPC.sendMessage(play, play.getPrev(), MessageType.NEIGHBORS_UPDATE, null, Json.toJson(new Neighbors(null, message.getSender())), true);
+                            if (index != null) {
+                                index.put(message.getSender(), position);
                             }
 
-                            play.setPrev(message.getSender());
+                            // the new player gets the whole state at once...
+
+                            ArrayList<User> users = play.getGame().getUsers();
+                            ViewChange change = play.getView().add(message.getSender(), play.getUser());
 
-                            // update user list :: client side
+                            JoinSnapshot snapshot = new JoinSnapshot(position, new MembershipView(play.getView()));
+                            IPC.sendMessage(play, message.getSender(), MessageType.RING_ENTRY_SUCCEEDED, null, snapshot, true);
 
-                            play.getGame().getUsers().add(message.getSender());
-                            play.getGame().getUsers().add(play.getUser());
+                            // ...and the others a single view change, from which they derive their neighbors
 
-                            IPC.sendMessage(play, play.getGame().getUsers(), MessageType.USER_LIST_UPDATE, null, Json.toJson(play.getGame().getUsers()), true);
+                            IPC.sendMessage(play, users, MessageType.VIEW_CHANGE, null, change, true);
 
-                            play.getGame().getUsers().remove(play.getUser());
+                            play.updateUsers();
 
-                            // ring entry succeeded
+                            System.out.format("A new player entered the game: welcome to %s!\n", message.getSender().getName());
 
-                            IPC.sendMessage(play, message.getSender(), MessageType.RING_ENTRY_SUCCEEDED, null, null, false);
+                            play.recordJoin(System.nanoTime() - start);
                         }
 
                     }
@@ -201,84 +440,105 @@ class MessageHandlerChild extends Thread {
                 break;
 
             case RING_ENTRY_SUCCEEDED:
+                JoinSnapshot snapshot = message.getBodyAs(JoinSnapshot.class);
+
+                play.setPosition(snapshot.getPosition());
+                play.getView().install(snapshot.getView());
+                play.updateUsers();
+
+                for (User user : play.getGame().getUsers()) {
+                    play.getClient().prewarm(user);
+                }
+
                 play.setRingEntrySucceeded(true);
                 play.getRingEntryRequest().release();
-
-                IPC.sendMessage(play, play.getGame().getUsers(), MessageType.GAME_USER_WELCOME, null, null, true);
                 break;
 
-            case GAME_USER_WELCOME:
-                System.out.format("A new player entered the game: welcome to %s!\n", message.getSender().getName());
+            case VIEW_CHANGE:
+                ViewChange change = message.getBodyAs(ViewChange.class);
 
-                head.clear();
-                head.put("ackIdx", message.getAckIdx());
-                IPC.sendMessage(play, message.getSender(), MessageType.ACKNOWLEDGED, head, null, false);
-                break;
+                if (!play.getView().apply(change)) {
+                    // some change got lost: the whole view from somebody who is staying
+                    User source = (change.getRemoved() != null) ? play.getNext() : message.getSender();
 
-            case GAME_USER_LEFT:
-                System.out.format("%s left the game.\n", message.getSender().getName());
+                    if (!play.getUser().equals(source)) {
+                        IPC.sendMessage(play, source, MessageType.VIEW_REQUEST, null, null, false);
+                    }
+                }
 
-                head.clear();
-                head.put("ackIdx", message.getAckIdx());
-                IPC.sendMessage(play, message.getSender(), MessageType.ACKNOWLEDGED, head, null, false);
-                break;
+                play.updateUsers();
 
-            case NEIGHBORS_UPDATE:
-                if (message.getBody() != null) {
-                    neighbors = (Neighbors) Json.fromJson(message.getBody(), Neighbors.class);
+                // crashed, removed by its successor
+                if (change.getRemoved() != null && !change.getRemoved().equals(message.getSender())) {
+                    System.out.format("%s left the game (connection lost).\n", change.getRemoved().getName());
 
-                    if (neighbors.getPrev() != null) {
-                        play.setPrev(neighbors.getPrev());
-                    }
-                    if (neighbors.getNext() != null) {
-                        play.setNext(neighbors.getNext());
+                    AddressPort removed = new AddressPort(change.getRemoved().getAddress(), change.getRemoved().getPort());
+
+                    play.getAckTable().fail(change.getRemoved());
+                    play.getRing().peerFailed(change.getRemoved());
+                    play.getHandler().background(() -> play.getClient().closeSocket(removed));
+                }
+
+                // left on its own: this was its last message
+                if (change.getRemoved() != null && change.getRemoved().equals(message.getSender())) {
+                    if (change.getQuit()) {
+                        System.out.format("%s left the game.\n", change.getRemoved().getName());
                     }
-                } else {
-                    IPC.sendMessage(play, play.getPrev(), MessageType.NEIGHBORS_UPDATE, null, Json.toJson(new Neighbors(null, play.getNext())), true);
-                    IPC.sendMessage(play, play.getNext(), MessageType.NEIGHBORS_UPDATE, null, Json.toJson(new Neighbors(play.getPrev(), null)), true);
+
+                    AddressPort left = new AddressPort(message.getSender().getAddress(), message.getSender().getPort());
+                    play.getHandler().background(() -> play.getClient().closeSocket(left));
                 }
 
-                head.clear();
-                head.put("ackIdx", message.getAckIdx());
-                IPC.sendMessage(play, message.getSender(), MessageType.ACKNOWLEDGED, head, null, false);
+                if (change.getRemoved() != null) {
+                    play.getHandler().forget(change.getRemoved());
+                }
+
+                if (change.getAdded() != null) {
+                    play.getClient().prewarm(change.getAdded());
+
+                    System.out.format("A new player entered the game: welcome to %s!\n", change.getAdded().getName());
+                }
+                break;
+
+            case VIEW_REQUEST:
+                IPC.sendMessage(play, message.getSender(), MessageType.VIEW_SNAPSHOT, null, new MembershipView(play.getView()), false);
                 break;
 
-            case USER_LIST_UPDATE:
-                if (message.getBody() != null) {
-                    User[] users = (User[]) Json.fromJson(message.getBody(), User[].class);
+            case VIEW_SNAPSHOT:
+                play.getView().install(message.getBodyAs(MembershipView.class));
+                play.updateUsers();
 
-                    play.getGame().setUsers(new ArrayList<User>(Arrays.asList(users)));
-                    play.getGame().getUsers().remove(play.getUser());
-                } else {
-                    IPC.sendMessage(play, play.getGame().getUsers(), MessageType.USER_LIST_UPDATE, null, Json.toJson(play.getGame().getUsers()), true);
+                for (User user : play.getGame().getUsers()) {
+                    play.getClient().prewarm(user);
                 }
+                break;
 
-                head.clear();
-                head.put("ackIdx", message.getAckIdx());
-                IPC.sendMessage(play, message.getSender(), MessageType.ACKNOWLEDGED, head, null, false);
+            case GAME_USER_LEFT:
+                System.out.format("%s left the game.\n", message.getSender().getName());
                 break;
 
             case POSITION_REQUEST:
-                IPC.sendMessage(play, message.getSender(), MessageType.POSITION_VALUE, null, Json.toJson(play.getPosition()), false);
+                IPC.sendMessage(play, message.getSender(), MessageType.POSITION_VALUE, null, new Position(play.getPosition()), false);
                 break;
 
             case POSITION_VALUE:
-                position = (Position) Json.fromJson(message.getBody(), Position.class);
+                position = message.getBodyAs(Position.class);
                 play.getPositionQueue().push(position);
                 break;
 
             case POSITION_UPDATE:
-                play.setPosition((Position) Json.fromJson(message.getBody(), Position.class));
-
-                head.clear();
-                head.put("ackIdx", message.getAckIdx());
-                IPC.sendMessage(play, message.getSender(), MessageType.ACKNOWLEDGED, head, null, false);
+                play.setPosition(message.getBodyAs(Position.class));
                 break;
 
             case POSITION_CHECK:
-                position = (Position) Json.fromJson(message.getBody(), Position.class);
+                // every position the sender went through in its last hold
+                boolean match = false;
+
+                for (Position tmp : message.getBodyAs(Position[].class)) {
+                    match |= tmp.equals(play.getPosition());
+                }
 
-                if (position.equals(play.getPosition())) {
+                if (match) {
                     play.setGameOver(true);
 
                     play.getBombGenerator().exit();
@@ -291,9 +551,7 @@ class MessageHandlerChild extends Thread {
                     IPC.sendMessage(play, message.getSender(), MessageType.POSITION_MATCH, head, null, true);
                 }
 
-                head.clear();
-                head.put("ackIdx", message.getAckIdx());
-                IPC.sendMessage(play, message.getSender(), MessageType.ACKNOWLEDGED, head, null, false);
+                IPC.acknowledge(play, message);
 
                 if (play.getGameOver()) {
                     play.getRing().unlock();
@@ -304,27 +562,19 @@ class MessageHandlerChild extends Thread {
                 break;
 
             case POSITION_MATCH:
-                play.setEaten(message.getSender());
-
-                head.clear();
-                head.put("ackIdx", message.getAckIdx());
-                IPC.sendMessage(play, message.getSender(), MessageType.ACKNOWLEDGED, head, null, false);
+                play.addEaten(message.getSender());
                 break;
 
             case BOMB_LAUNCH:
                 if (!play.getGameOver()) {
-                    bomb = (Bomb) Json.fromJson(message.getBody(), Bomb.class);
+                    bomb = message.getBodyAs(Bomb.class);
                     System.out.format("%s launched a %s bomb, it will explode in 5 seconds!\n", message.getSender().getName(), bomb.getArea().toString().toLowerCase());
                 }
-
-                head.clear();
-                head.put("ackIdx", message.getAckIdx());
-                IPC.sendMessage(play, message.getSender(), MessageType.ACKNOWLEDGED, head, null, false);
                 break;
 
             case BOMB_EXPLOSION:
                 if (!play.getGameOver()) {
-                    bomb = (Bomb) Json.fromJson(message.getBody(), Bomb.class);
+                    bomb = message.getBodyAs(Bomb.class);
                     System.out.format("KABOOM! The %s bomb launched by %s exploded!\n", bomb.getArea().toString().toLowerCase(), message.getSender().getName());
 
                     if (play.getPosition().getArea() == bomb.getArea()) {
@@ -337,13 +587,11 @@ class MessageHandlerChild extends Thread {
                         System.out.format("Oh no, you've been hit by the %s bomb launched by %s! :(\n", bomb.getArea().toString().toLowerCase(), message.getSender().getName());
                         System.out.println(" *** GAME OVER ***\nPlease press ENTER to continue.");
 
-                        IPC.sendMessage(play, message.getSender(), MessageType.BOMB_AREA_MATCH, null, message.getBody(), true);
+                        IPC.sendMessage(play, message.getSender(), MessageType.BOMB_AREA_MATCH, null, bomb, true);
                     }
                 }
 
-                head.clear();
-                head.put("ackIdx", message.getAckIdx());
-                IPC.sendMessage(play, message.getSender(), MessageType.ACKNOWLEDGED, head, null, false);
+                IPC.acknowledge(play, message);
 
                 if (play.getGameOver()) {
                     play.getRing().unlock();
@@ -357,10 +605,6 @@ class MessageHandlerChild extends Thread {
                 if (!play.getGameOver()) {
                     play.getBombHits().add(message.getSender());
                 }
-
-                head.clear();
-                head.put("ackIdx", message.getAckIdx());
-                IPC.sendMessage(play, message.getSender(), MessageType.ACKNOWLEDGED, head, null, false);
                 break;
 
             case GAME_OVER:
@@ -375,9 +619,7 @@ class MessageHandlerChild extends Thread {
                     System.out.println(" *** GAME OVER ***\nPlease press ENTER to continue.");
                 }
 
-                head.clear();
-                head.put("ackIdx", message.getAckIdx());
-                IPC.sendMessage(play, message.getSender(), MessageType.ACKNOWLEDGED, head, null, false);
+                IPC.acknowledge(play, message);
 
                 play.getRing().unlock();
                 play.getClient().exit();
@@ -388,6 +630,7 @@ class MessageHandlerChild extends Thread {
             case SOCKET_CLOSURE:
                 AddressPort key = new AddressPort(message.getSender().getAddress(), message.getSender().getPort());
                 play.getClient().closeSocket(key);
+                play.getHandler().forget(message.getSender());
                 break;
         }
     }
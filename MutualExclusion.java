@@ -0,0 +1,536 @@
+// Distributed mutual exclusion strategies
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+interface MutualExclusion {
+    void requestCS();
+    void releaseCS();
+    void handleMessage(Message message);
+
+    // every peer's position, exact in the critical section (null outside it, or if the strategy carries none)
+    PositionIndex getIndex();
+
+    // crash recovery: forget a member, and regenerate the token if it was lost with it
+    // (strategies without a token always hold it)
+    void peerFailed(User user);
+    boolean holdsToken();
+    long generation();
+
+    // a regeneration to generation gen is being decided by owner: the older tokens are held back until it is resolved
+    // (false if somebody else is deciding one), then dropped if it went ahead
+    boolean fence(long gen, User owner);
+    void resolve(long gen, User owner, boolean regenerated);
+    void regenerate(long gen);
+
+    // the peer is leaving: never block again and let the others go on without us
+    void unlock();
+    void exit();
+}
+
+class MutualExclusions {
+    public static final String RING = "ring";
+    public static final String SUZUKI_KASAMI = "suzuki-kasami";
+    public static final String RICART_AGRAWALA = "ricart-agrawala";
+
+    // flag: the peer creating the game, who starts with the token
+    public static MutualExclusion create(String strategy, boolean flag, PlayGame play) {
+        if (strategy == null) {
+            strategy = RING;  // games created before the choice existed
+        }
+
+        switch (strategy) {
+            case SUZUKI_KASAMI:
+                return new SuzukiKasami(flag, play);
+            case RICART_AGRAWALA:
+                return new RicartAgrawala(play);
+            default:
+                return new TokenRing(flag, play);
+        }
+    }
+
+    static String key(User user) {
+        return user.getAddress() + ":" + user.getPort();
+    }
+}
+
+// the tokens held back while a regeneration is being decided, see FailureDetector
+class TokenFence {
+    private long gen;       // generation proposed
+    private User owner;     // peer deciding, null if none
+    private Message held;   // token arrived in the meantime
+
+    public boolean raise(long gen, User owner) {
+        if (this.owner != null && !this.owner.equals(owner)) {
+            return false;
+        }
+
+        this.gen = gen;
+        this.owner = owner;
+        return true;
+    }
+
+    // whether a token of generation gen is to be held back
+    public boolean hold(Message message, long gen) {
+        if (owner == null || gen >= this.gen) {
+            return false;
+        }
+
+        held = message;
+        return true;
+    }
+
+    // the token held back, if any
+    public Message lift(long gen, User owner) {
+        if (this.owner == null || !this.owner.equals(owner) || this.gen != gen) {
+            return null;
+        }
+
+        Message tmp = held;
+        this.owner = null;
+        held = null;
+        return tmp;
+    }
+
+    // the peer deciding crashed: as if it gave up
+    public Message ownerFailed(User user) {
+        return user.equals(owner) ? lift(gen, owner) : null;
+    }
+}
+
+// the token travelling between Suzuki-Kasami peers
+class SuzukiKasamiToken {
+    private HashMap<String, Long> granted;  // last request served, per peer
+    private ArrayList<User> queue;          // peers waiting for the token
+    private IndexUpdate update;             // what the next holder's copy of the index lacks
+    private long generation;
+
+    public SuzukiKasamiToken() {
+        granted = new HashMap<String, Long>();
+        queue = new ArrayList<User>();
+    }
+
+    public HashMap<String, Long> getGranted() { return granted; }
+    public void setGranted(HashMap<String, Long> map) { granted = map; }
+
+    public ArrayList<User> getQueue() { return queue; }
+    public void setQueue(ArrayList<User> list) { queue = list; }
+
+    public IndexUpdate getUpdate() { return update; }
+    public void setUpdate(IndexUpdate value) { update = value; }
+
+    public long getGeneration() { return generation; }
+    public void setGeneration(long number) { generation = number; }
+}
+
+// broadcast requests, the token goes straight to the next waiting peer
+class SuzukiKasami implements MutualExclusion {
+    private PlayGame play;
+    private SuzukiKasamiToken token;            // null while somebody else has it
+    private HashMap<String, Long> requested;    // highest request number seen, per peer
+    private boolean wantCS;
+    private boolean unlocked;
+    private long generation;    // bumped when a lost token is regenerated
+    private TokenFence fence;
+    private IndexReplica replica;   // a request says how far behind our copy is, the token brings what it lacks
+
+    // statistics
+    private long acquisitions;
+    private long acquisitionNanos;
+    private long sent;
+
+    public SuzukiKasami(boolean flag, PlayGame play) {
+        this.play = play;
+        token = flag ? new SuzukiKasamiToken() : null;
+        requested = new HashMap<String, Long>();
+        wantCS = false;
+        unlocked = false;
+        fence = new TokenFence();
+        replica = new IndexReplica();
+
+        if (flag) {
+            replica.start(0);
+        }
+    }
+
+    public synchronized void requestCS() {
+        long start = System.nanoTime();
+
+        wantCS = true;
+
+        if (token == null && !unlocked) {
+            String me = MutualExclusions.key(play.getUser());
+            long seq = requested.getOrDefault(me, 0L) + 1;
+            requested.put(me, seq);
+
+            ArrayList<User> users = new ArrayList<User>(play.getGame().getUsers());
+
+            HashMap<String, String> head = new HashMap<String, String>();
+            head.put("seq", Long.toString(seq));
+            head.put("indexGen", Long.toString(replica.getGeneration()));
+            head.put("index", Long.toString(replica.getVersion()));
+
+            IPC.sendMessage(play, users, MessageType.CS_REQUEST, head, null, false);
+            sent += users.size();
+
+            while (token == null && !unlocked) {
+                try {
+                    wait();
+                } catch (InterruptedException exc) {
+                    exc.printStackTrace();
+                }
+            }
+        }
+
+        acquisitions++;
+        acquisitionNanos += System.nanoTime() - start;
+    }
+
+    public synchronized void releaseCS() {
+        wantCS = false;
+
+        if (token == null) {
+            return;
+        }
+
+        token.getGranted().put(MutualExclusions.key(play.getUser()), requested.getOrDefault(MutualExclusions.key(play.getUser()), 0L));
+
+        enqueueWaiting();
+        passToken();
+    }
+
+    // appends the peers with an outstanding request that are not queued yet
+    private void enqueueWaiting() {
+        for (User user : new ArrayList<User>(play.getGame().getUsers())) {
+            String key = MutualExclusions.key(user);
+
+            if (!token.getQueue().contains(user) && requested.getOrDefault(key, 0L) == token.getGranted().getOrDefault(key, 0L) + 1) {
+                token.getQueue().add(user);
+            }
+        }
+    }
+
+    private void passToken() {
+        if (token.getQueue().isEmpty()) {
+            return;  // kept here until somebody asks for it
+        }
+
+        User user = token.getQueue().remove(0);
+        sendToken(user);
+    }
+
+    private void sendToken(User user) {
+        SuzukiKasamiToken tmp = token;
+        token = null;
+        tmp.setUpdate(replica.outgoing(user));
+
+        IPC.sendMessage(play, user, MessageType.TOKEN, null, Json.toJson(tmp), false);
+        sent++;
+    }
+
+    public synchronized void handleMessage(Message message) {
+        switch (message.getType()) {
+            case TOKEN:
+                SuzukiKasamiToken tmp = Json.fromJson(message.getBody(), SuzukiKasamiToken.class);
+
+                if (tmp.getGeneration() < generation || fence.hold(message, tmp.getGeneration())) {
+                    // outlived by a regenerated token, or maybe about to be
+                    break;
+                }
+
+                generation = tmp.getGeneration();
+                replica.incoming(tmp.getUpdate(), generation);
+                tmp.setUpdate(null);
+                token = tmp;
+
+                if (unlocked) {
+                    handOver();
+                } else if (wantCS) {
+                    notifyAll();
+                } else {
+                    // handed over by a leaving peer
+                    enqueueWaiting();
+                    passToken();
+                }
+                break;
+
+            case CS_REQUEST:
+                String key = MutualExclusions.key(message.getSender());
+                long seq = Long.parseLong(message.getHead().get("seq"));
+
+                if (seq > requested.getOrDefault(key, 0L)) {
+                    requested.put(key, seq);
+                }
+
+                if (message.getHead().containsKey("index")) {
+                    replica.learned(message.getSender(), Long.parseLong(message.getHead().get("indexGen")), Long.parseLong(message.getHead().get("index")));
+                }
+
+                if (token != null && !wantCS && seq == token.getGranted().getOrDefault(key, 0L) + 1) {
+                    token.getQueue().remove(message.getSender());
+                    sendToken(message.getSender());
+                }
+                break;
+        }
+    }
+
+    public synchronized PositionIndex getIndex() {
+        return token != null ? replica.get() : null;
+    }
+
+    public synchronized void peerFailed(User user) {
+        requested.remove(MutualExclusions.key(user));
+        replica.forget(user);
+
+        if (token != null) {
+            token.getQueue().remove(user);
+        }
+
+        Message held = fence.ownerFailed(user);
+
+        if (held != null) {
+            handleMessage(held);
+        }
+    }
+
+    public synchronized boolean holdsToken() {
+        return token != null;
+    }
+
+    public synchronized long generation() {
+        return generation;
+    }
+
+    public synchronized boolean fence(long gen, User owner) {
+        return fence.raise(gen, owner);
+    }
+
+    public synchronized void resolve(long gen, User owner, boolean regenerated) {
+        Message held = fence.lift(gen, owner);
+
+        if (regenerated) {
+            generation = Math.max(generation, gen);
+        } else if (held != null) {
+            handleMessage(held);
+        }
+    }
+
+    // every request seen is taken as outstanding: a peer that doesn't want it anymore just passes it on
+    public synchronized void regenerate(long gen) {
+        generation = gen;
+        token = new SuzukiKasamiToken();
+        token.setGeneration(generation);
+        replica.start(generation);
+        replica.get().put(play.getUser(), play.getPosition());
+
+        for (String key : requested.keySet()) {
+            token.getGranted().put(key, requested.get(key) - 1);
+        }
+
+        if (wantCS) {
+            notifyAll();
+        } else {
+            enqueueWaiting();
+            passToken();
+        }
+    }
+
+    // a leaving peer must not take the token away
+    private void handOver() {
+        if (token == null) {
+            return;
+        }
+
+        enqueueWaiting();
+
+        if (!token.getQueue().isEmpty()) {
+            passToken();
+        } else if (!play.getGame().getUsers().isEmpty()) {
+            sendToken(play.getGame().getUsers().get(0));
+        }
+    }
+
+    public synchronized void unlock() {
+        wantCS = false;
+        unlocked = true;
+        handOver();
+        notifyAll();
+    }
+
+    public void exit() {
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("suzuki-kasami: %d acquisitions, avg %.3f ms, %.1f messages per CS%n%s",
+                acquisitions, acquisitions == 0 ? 0.0 : acquisitionNanos / 1e6 / acquisitions, acquisitions == 0 ? 0.0 : (double) sent / acquisitions, replica);
+    }
+}
+
+// permission based: enter once every other peer replied to a timestamped request
+class RicartAgrawala implements MutualExclusion {
+    private PlayGame play;
+    private long clock;             // Lamport clock
+    private long stamp;             // timestamp of our pending request
+    private boolean requesting;
+    private boolean inCS;
+    private boolean unlocked;
+    private HashSet<User> asked;    // peers our pending request was sent to
+    private HashSet<User> pending;  // peers whose reply we are waiting for
+    private ArrayDeque<User> deferred;
+
+    // statistics
+    private long acquisitions;
+    private long acquisitionNanos;
+    private long sent;
+
+    public RicartAgrawala(PlayGame play) {
+        this.play = play;
+        clock = 0;
+        requesting = false;
+        inCS = false;
+        unlocked = false;
+        asked = new HashSet<User>();
+        pending = new HashSet<User>();
+        deferred = new ArrayDeque<User>();
+    }
+
+    public synchronized void requestCS() {
+        long start = System.nanoTime();
+
+        if (!unlocked) {
+            requesting = true;
+            stamp = ++clock;
+            asked = new HashSet<User>(play.getGame().getUsers());
+            pending = new HashSet<User>(asked);
+
+            IPC.sendMessage(play, new ArrayList<User>(pending), MessageType.CS_REQUEST, stampHead(), null, false);
+            sent += pending.size();
+
+            while (!pending.isEmpty() && !unlocked) {
+                try {
+                    wait(Config.mutexRecheck);
+                } catch (InterruptedException exc) {
+                    exc.printStackTrace();
+                }
+
+                // peers that left in the meantime will never reply
+                pending.retainAll(play.getGame().getUsers());
+            }
+        }
+
+        requesting = false;
+        inCS = true;
+
+        acquisitions++;
+        acquisitionNanos += System.nanoTime() - start;
+    }
+
+    public synchronized void releaseCS() {
+        inCS = false;
+
+        for (User user : deferred) {
+            reply(user);
+        }
+        deferred.clear();
+    }
+
+    private HashMap<String, String> stampHead() {
+        HashMap<String, String> head = new HashMap<String, String>();
+        head.put("clock", Long.toString(stamp));
+        return head;
+    }
+
+    private void reply(User user) {
+        IPC.sendMessage(play, user, MessageType.CS_REPLY, null, null, false);
+        sent++;
+    }
+
+    // total order on requests: timestamp, then name (unique within a game)
+    private boolean precedes(long stamp, User user, long other, User otherUser) {
+        if (stamp != other) {
+            return stamp < other;
+        }
+        return user.getName().compareTo(otherUser.getName()) < 0;
+    }
+
+    public synchronized void handleMessage(Message message) {
+        switch (message.getType()) {
+            case CS_REQUEST:
+                User sender = message.getSender();
+                long other = Long.parseLong(message.getHead().get("clock"));
+
+                clock = Math.max(clock, other) + 1;
+
+                if (!unlocked && (inCS || (requesting && precedes(stamp, play.getUser(), other, sender)))) {
+                    deferred.add(sender);
+                } else {
+                    reply(sender);
+
+                    // a peer we did not know about when we asked: it needs our request too
+                    if (requesting && !inCS && !asked.contains(sender) && !unlocked) {
+                        asked.add(sender);
+                        pending.add(sender);
+                        IPC.sendMessage(play, sender, MessageType.CS_REQUEST, stampHead(), null, false);
+                        sent++;
+                    }
+                }
+                break;
+
+            case CS_REPLY:
+                if (pending.remove(message.getSender()) && pending.isEmpty()) {
+                    notifyAll();
+                }
+                break;
+        }
+    }
+
+    public PositionIndex getIndex() {
+        return null;
+    }
+
+    public synchronized void peerFailed(User user) {
+        asked.remove(user);
+        deferred.remove(user);
+
+        if (pending.remove(user) && pending.isEmpty()) {
+            notifyAll();
+        }
+    }
+
+    public boolean holdsToken() {
+        return true;
+    }
+
+    public long generation() {
+        return 0;
+    }
+
+    public boolean fence(long gen, User owner) {
+        return true;
+    }
+
+    public void resolve(long gen, User owner, boolean regenerated) {
+    }
+
+    public void regenerate(long gen) {
+    }
+
+    public synchronized void unlock() {
+        unlocked = true;
+        requesting = false;
+        releaseCS();
+        notifyAll();
+    }
+
+    public void exit() {
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("ricart-agrawala: %d acquisitions, avg %.3f ms, %.1f messages per CS",
+                acquisitions, acquisitions == 0 ? 0.0 : acquisitionNanos / 1e6 / acquisitions, acquisitions == 0 ? 0.0 : (double) sent / acquisitions);
+    }
+}
@@ -0,0 +1,250 @@
+// Non-blocking Inter-Process Communication
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+class NioServer extends Thread implements ServerTransport {
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    private NioServerLoop[] loops;
+    private volatile boolean running;
+
+    NioServer(int port, MessageQueue queue, int loops) {
+        try {
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException exc) {
+            exc.printStackTrace();
+        }
+
+        this.loops = new NioServerLoop[Math.max(1, loops)];
+
+        for (int i = 0; i < this.loops.length; i++) {
+            this.loops[i] = new NioServerLoop(queue);
+        }
+
+        running = true;
+
+        start();
+    }
+
+    public void run() {
+        int next = 0;
+
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException | ClosedSelectorException exc) {
+                // exc.printStackTrace();
+                break;
+            }
+
+            Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+
+            while (iter.hasNext()) {
+                SelectionKey key = iter.next();
+                iter.remove();
+
+                if (!key.isValid() || !key.isAcceptable()) {
+                    continue;
+                }
+
+                try {
+                    SocketChannel channel;
+
+                    while ((channel = serverChannel.accept()) != null) {
+                        channel.configureBlocking(false);
+                        channel.socket().setTcpNoDelay(true);
+
+                        // round robin over the event loops
+                        loops[next].register(channel);
+                        next = (next + 1) % loops.length;
+                    }
+                } catch (IOException exc) {
+                    exc.printStackTrace();
+                }
+            }
+        }
+
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException exc) {
+            exc.printStackTrace();
+        }
+
+        for (NioServerLoop loop : loops) {
+            loop.exit();
+
+            try {
+                loop.join();
+            } catch (InterruptedException exc) {
+                exc.printStackTrace();
+            }
+        }
+    }
+
+    public void exit() {
+        running = false;
+        selector.wakeup();
+    }
+}
+
+class NioServerLoop extends Thread {
+    private Selector selector;
+    private ConcurrentLinkedQueue<SocketChannel> pending;
+    private MessageQueue queue;
+    private volatile boolean running;
+
+    NioServerLoop(MessageQueue queue) {
+        this.queue = queue;
+        pending = new ConcurrentLinkedQueue<SocketChannel>();
+
+        try {
+            selector = Selector.open();
+        } catch (IOException exc) {
+            exc.printStackTrace();
+        }
+
+        running = true;
+
+        start();
+    }
+
+    public void register(SocketChannel channel) {
+        pending.add(channel);
+        selector.wakeup();
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException exc) {
+                exc.printStackTrace();
+                break;
+            }
+
+            // channels handed over by the acceptor
+            SocketChannel channel;
+
+            while ((channel = pending.poll()) != null) {
+                try {
+                    channel.register(selector, SelectionKey.OP_READ, new FrameReader());
+                } catch (IOException exc) {
+                    exc.printStackTrace();
+                    close(channel);
+                }
+            }
+
+            Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+
+            while (iter.hasNext()) {
+                SelectionKey key = iter.next();
+                iter.remove();
+
+                if (!key.isValid() || !key.isReadable()) {
+                    continue;
+                }
+
+                channel = (SocketChannel) key.channel();
+                FrameReader reader = (FrameReader) key.attachment();
+
+                try {
+                    if (!reader.read(channel, queue)) {
+                        key.cancel();
+                        close(channel);
+                    }
+                } catch (IOException exc) {
+                    // exc.printStackTrace();
+                    key.cancel();
+                    close(channel);
+                } catch (RuntimeException exc) {
+                    // a frame we cannot make sense of: only this connection is dropped, the loop serves the others
+                    exc.printStackTrace();
+                    key.cancel();
+                    close(channel);
+                }
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            close(key.channel());
+        }
+
+        try {
+            selector.close();
+        } catch (IOException exc) {
+            exc.printStackTrace();
+        }
+    }
+
+    public void exit() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private static void close(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException exc) {
+            exc.printStackTrace();
+        }
+    }
+}
+
+// splits the stream into the frames written by ClientWriter
+class FrameReader {
+    private ByteBuffer buffer;
+    private MessageCodec codec;
+
+    public FrameReader() {
+        buffer = ByteBuffer.allocate(4096);
+        codec = Codecs.get();
+    }
+
+    // returns false at end of stream, throws IOException on a frame longer than Codecs.MAX_FRAME
+    public boolean read(SocketChannel channel, MessageQueue queue) throws IOException {
+        int count = channel.read(buffer);
+        int length;
+
+        buffer.flip();
+
+        while (true) {
+            length = codec.frameLength(buffer);
+
+            if (length < 0 || buffer.remaining() < length) {
+                break;
+            }
+
+            byte[] frame = new byte[length];
+            buffer.get(frame);
+
+            queue.push(codec.decode(frame));
+        }
+
+        buffer.compact();
+
+        // make room for a frame larger than the buffer, as large as the frame and no larger
+        if (!buffer.hasRemaining()) {
+            ByteBuffer tmp = ByteBuffer.allocate(length);
+            buffer.flip();
+            tmp.put(buffer);
+            buffer = tmp;
+        }
+
+        return count != -1;
+    }
+}
@@ -163,6 +163,7 @@ public class Peer {
         String name;
         int grid;
         int score;
+        String mutex;
 
         CheckFunction<String> checkName = (input) -> {
             Pattern pattern = Pattern.compile("[a-zA-Z0-9_]+");
@@ -192,6 +193,11 @@ public class Peer {
                 return false;
             }
 
+            if (tmp > 4096) {
+                System.out.println("Sorry, the grid size can be at most 4096.");
+                return false;
+            }
+
             return true;
         };
 
@@ -212,6 +218,18 @@ public class Peer {
             return true;
         };
 
+        CheckFunction<String> checkMutex = (input) -> {
+            Pattern pattern = Pattern.compile("r|R|s|S|a|A|");
+            Matcher matcher = pattern.matcher(input);
+
+            if (!matcher.matches()) {
+                System.out.println("Sorry, you typed an invalid character.");
+                return false;
+            }
+
+            return true;
+        };
+
         System.out.println(" *** CREATING A NEW GAME ***");
 
         String input;
@@ -237,7 +255,31 @@ public class Peer {
 
         score = Integer.parseInt(input);
 
+        System.out.println("Please, type the mutual exclusion strategy (R = token ring, S = Suzuki-Kasami, A = Ricart-Agrawala), or just press ENTER for the default one.");
+        do {
+            input = getInput();
+        } while (!checkMutex.check(input));
+
+        switch (input) {
+            case "r":
+            case "R":
+                mutex = MutualExclusions.RING;
+                break;
+            case "s":
+            case "S":
+                mutex = MutualExclusions.SUZUKI_KASAMI;
+                break;
+            case "a":
+            case "A":
+                mutex = MutualExclusions.RICART_AGRAWALA;
+                break;
+            default:
+                mutex = Config.mutex;
+                break;
+        }
+
         Game game = new Game(name, grid, score);
+        game.setMutex(mutex);
 
         if (SRC.addGame(game) == MessageType.GAME_NAME_UNAVAILABLE) {
             System.out.println("Sorry, this name is already used by a game in progress.");
@@ -255,11 +297,12 @@ public class Peer {
             return null;
         }
 
-        Game game = (Game) Json.fromJson(response.getBody(), Game.class);
+        Game game = Json.fromJson(response.getBody(), Game.class);
 
         System.out.format("Game \"%s\".%n", game.getName());
         System.out.format("Grid of size: %d%n", game.getGrid());
         System.out.format("Target score: %d%n", game.getScore());
+        System.out.format("Mutual exclusion: %s%n", game.getMutex() != null ? game.getMutex() : MutualExclusions.RING);
         System.out.println("The players are:");
 
         if(game.getUsers().isEmpty()) {
@@ -1,5 +1,10 @@
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 interface CheckFunction<T> {
     boolean check(T args);
@@ -8,27 +13,188 @@ interface CheckFunction<T> {
 class QuitApplicationException extends Exception {}
 class QuitGameException extends Exception {}
 
+enum WaitStrategy {
+    PARK,               // park as soon as the queue is empty
+    SPIN_THEN_PARK,     // busy-wait a little before parking
+}
+
+// bounded multi-producer / single-consumer ring buffer
 class MessageQueue {
-    private ArrayList<Message> queue;
+    private static final int SPINS = 1000;
+
+    // stands for the null pushed to stop the consumer
+    private static final Message CLOSED = new Message();
+
+    private AtomicReferenceArray<Message> buffer;
+    private int capacity;
+    private int mask;
+    private WaitStrategy strategy;
+
+    private AtomicLong tail;            // next slot claimed by a producer
+    private volatile long head;         // next slot read by the consumer
+    private volatile Thread consumer;   // set while the consumer is parked
+
+    // counters
+    private LongAdder pushed;
+    private LongAdder producerWaitNanos;
+    private AtomicLong maxDepth;
+    private long consumerWaits;
+    private long consumerWaitNanos;
 
     public MessageQueue() {
-        queue = new ArrayList<Message>();
+        this(Config.queueCapacity, Config.queueWait);
     }
 
-    public synchronized Message pop() {
-        while (queue.isEmpty()) {
-            try {
-                wait();
-            } catch (InterruptedException exc) {
-                exc.printStackTrace();
+    public MessageQueue(int capacity, WaitStrategy strategy) {
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = this.capacity - 1;
+        buffer = new AtomicReferenceArray<Message>(this.capacity);
+        this.strategy = strategy;
+
+        tail = new AtomicLong();
+        head = 0;
+
+        pushed = new LongAdder();
+        producerWaitNanos = new LongAdder();
+        maxDepth = new AtomicLong();
+    }
+
+    public void push(Message message) {
+        long slot = tail.getAndIncrement();
+
+        // queue full: wait for the consumer to free the slot
+        if (slot - head >= capacity) {
+            long start = System.nanoTime();
+            int spins = SPINS;
+
+            while (slot - head >= capacity) {
+                if (spins > 0) {
+                    spins--;
+                } else {
+                    LockSupport.parkNanos(10000);
+                }
+            }
+
+            producerWaitNanos.add(System.nanoTime() - start);
+        }
+
+        buffer.set((int) slot & mask, message == null ? CLOSED : message);
+
+        pushed.increment();
+        maxDepth.accumulateAndGet(slot + 1 - head, Math::max);
+
+        Thread waiter = consumer;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    public Message pop() {
+        await();
+
+        Message message = poll();
+        return message == CLOSED ? null : message;
+    }
+
+    // moves up to max pending messages into batch, waiting for at least one;
+    // the null that stops the consumer is always the last one moved
+    public int drainTo(ArrayList<Message> batch, int max) {
+        await();
+
+        int count = 0;
+        Message message;
+
+        while (count < max && (message = poll()) != null) {
+            count++;
+
+            if (message == CLOSED) {
+                batch.add(null);
+                break;
+            }
+
+            batch.add(message);
+        }
+
+        return count;
+    }
+
+    public int drainTo(ArrayList<Message> batch) {
+        return drainTo(batch, capacity);
+    }
+
+    // same as drainTo, but gives up after timeoutMillis without messages
+    public int poll(ArrayList<Message> batch, long timeoutMillis) {
+        long deadline = System.nanoTime() + 1000000 * Math.max(0, timeoutMillis);
+
+        while (buffer.get((int) head & mask) == null) {
+            long delay = deadline - System.nanoTime();
+
+            if (delay <= 0) {
+                return 0;
+            }
+
+            consumer = Thread.currentThread();
+
+            if (buffer.get((int) head & mask) == null) {
+                LockSupport.parkNanos(this, delay);
+            }
+
+            consumer = null;
+        }
+
+        return drainTo(batch, capacity);
+    }
+
+    private Message poll() {
+        long slot = head;
+        int index = (int) slot & mask;
+        Message message = buffer.get(index);
+
+        if (message != null) {
+            buffer.lazySet(index, null);
+            head = slot + 1;
+        }
+
+        return message;
+    }
+
+    private void await() {
+        if (buffer.get((int) head & mask) != null) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        int spins = (strategy == WaitStrategy.SPIN_THEN_PARK) ? SPINS : 0;
+
+        while (buffer.get((int) head & mask) == null) {
+            if (spins > 0) {
+                spins--;
+            } else {
+                consumer = Thread.currentThread();
+
+                if (buffer.get((int) head & mask) == null) {
+                    LockSupport.park(this);
+                }
+
+                consumer = null;
             }
         }
-        return queue.remove(0);
+
+        consumerWaits++;
+        consumerWaitNanos += System.nanoTime() - start;
     }
 
-    public synchronized void push(Message message) {
-        queue.add(message);
-        notify();
+    public long getDepth() { return Math.max(0, tail.get() - head); }
+    public long getMaxDepth() { return maxDepth.get(); }
+    public long getPushed() { return pushed.sum(); }
+    public long getProducerWaitNanos() { return producerWaitNanos.sum(); }
+    public long getConsumerWaits() { return consumerWaits; }
+    public long getConsumerWaitNanos() { return consumerWaitNanos; }
+
+    @Override
+    public String toString() {
+        return String.format("depth %d (max %d), pushed %d, producers waited %d ms, consumer waited %d times for %d ms",
+                getDepth(), getMaxDepth(), getPushed(), getProducerWaitNanos() / 1000000, consumerWaits, consumerWaitNanos / 1000000);
     }
 }
 
@@ -52,6 +218,12 @@ class Position {
         this.grid = grid;
     }
 
+    public Position(Position position) {
+        x = position.x;
+        y = position.y;
+        grid = position.grid;
+    }
+
     public int getX() { return x; }
     public void setX(int number) { x = number; }
 
@@ -62,7 +234,7 @@ class Position {
     public void setGrid(int number) { grid = number; }
 
     public void setRandomPosition() {
-        Random random = new Random();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
         x = random.nextInt(grid);
         y = random.nextInt(grid);
     }
@@ -138,20 +310,80 @@ class PositionQueue {
     }
 }
 
-class Neighbors {
-    private User prev;
-    private User next;
+// keys typed and not applied yet
+class CommandQueue {
+    private ArrayDeque<Character> queue;
+    private boolean busy;   // a batch is being applied
+    private boolean closed;
 
-    public Neighbors() {}
+    public CommandQueue() {
+        queue = new ArrayDeque<Character>();
+        busy = false;
+        closed = false;
+    }
 
-    public Neighbors(User prev, User next) {
-        this.prev = prev;
-        this.next = next;
+    public synchronized void push(String keys) {
+        for (char key : keys.toCharArray()) {
+            queue.add(key);
+        }
+        notifyAll();
     }
 
-    public User getPrev() { return prev; }
-    public void setPrev(User user) { prev = user; }
+    public synchronized Character poll() {
+        return queue.poll();
+    }
 
-    public User getNext() { return next; }
-    public void setNext(User user) { next = user; }
-}
\ No newline at end of file
+    // waits for some keys, false once closed
+    public synchronized boolean await() {
+        while (queue.isEmpty() && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException exc) {
+                exc.printStackTrace();
+            }
+        }
+        busy = !closed;
+        return !closed;
+    }
+
+    public synchronized void done() {
+        busy = false;
+        notifyAll();
+    }
+
+    // waits until every key typed so far has been applied
+    public synchronized void drain() {
+        while ((busy || !queue.isEmpty()) && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException exc) {
+                exc.printStackTrace();
+            }
+        }
+    }
+
+    public synchronized void close() {
+        closed = true;
+        queue.clear();
+        notifyAll();
+    }
+}
+
+// everything a new player needs, sent by its sponsor
+class JoinSnapshot {
+    private Position position;
+    private MembershipView view;    // the new player included
+
+    public JoinSnapshot() {}
+
+    public JoinSnapshot(Position position, MembershipView view) {
+        this.position = position;
+        this.view = view;
+    }
+
+    public Position getPosition() { return position; }
+    public void setPosition(Position value) { position = value; }
+
+    public MembershipView getView() { return view; }
+    public void setView(MembershipView value) { view = value; }
+}
@@ -15,16 +15,17 @@ class PlayGame extends Thread {
     // IPC
     private MessageQueue iQueue;
     private MessageQueue oQueue;
-    private Server server;
+    private ServerTransport server;
     private Client client;
     private MessageHandler handler;
-    private HashMap<String, Acknowledgment> ackMap;
+    private AckTable ackTable;
+    private Links links;
+    private FailureDetector detector;
 
     // token ring
-    private User prev;
-    private User next;
+    private MembershipView view;
     private Semaphore mutex;
-    private TokenRing ring;
+    private MutualExclusion ring;
     private Semaphore ringEntryRequest;
     private boolean ringEntrySucceeded;
 
@@ -33,7 +34,10 @@ class PlayGame extends Thread {
 
     private int score;
 
-    private User eaten;
+    private ArrayList<User> eaten;
+
+    private CommandQueue commands;
+    private InputPipeline pipeline;
 
     private BombBag bombBag;
     private BombGenerator bombGenerator;
@@ -43,26 +47,40 @@ class PlayGame extends Thread {
 
     private boolean gameOver;
 
+    // statistics
+    private long checksSent;
+    private long checksSkipped;
+    private long joinNanos;
+    private long joinsSponsored;
+    private long joinHoldNanos;
+
     // getters & setters
 
     public User getUser() { return user; }
     public Game getGame() { return game; }
 
-    public User getPrev() { return prev; }
-    public void setPrev(User user) { prev = user; }
-    public User getNext() { return next; }
-    public void setNext(User user) { next = user; }
+    // the neighbors follow from the view
+    public MembershipView getView() { return view; }
+    public User getPrev() { return view.prev(user); }
+    public User getNext() { return view.next(user); }
+
+    // the others, after a change of the view
+    public void updateUsers() {
+        game.setUsers(view.others(user));
+    }
 
     public MessageQueue getOQueue() { return oQueue; }
     public MessageQueue getIQueue() { return iQueue; }
 
-    public Server getServer() { return server; }
+    public ServerTransport getServer() { return server; }
     public Client getClient() { return client; }
     public MessageHandler getHandler() { return handler; }
-    public HashMap<String, Acknowledgment> getAckMap() { return ackMap; }
+    public AckTable getAckTable() { return ackTable; }
+    public Links getLinks() { return links; }
+    public FailureDetector getDetector() { return detector; }
 
     public Semaphore getMutex() { return mutex; }
-    public TokenRing getRing() { return ring; }
+    public MutualExclusion getRing() { return ring; }
 
     public Position getPosition() { return position; }
     public void setPosition(Position position) { this.position = position; }
@@ -76,10 +94,24 @@ class PlayGame extends Thread {
     public synchronized boolean getGameOver() { return gameOver; }
     public synchronized void setGameOver(boolean flag) { gameOver = flag; }
 
+    // token held while sponsoring a new player
+    public synchronized void recordJoin(long nanos) {
+        joinsSponsored++;
+        joinHoldNanos += nanos;
+    }
+
     public int getScore() { return score; }
     public void setScore(int value) { score = value; }
 
-    public void setEaten(User user) { eaten = user; }
+    public synchronized void addEaten(User user) { eaten.add(user); }
+
+    private synchronized ArrayList<User> takeEaten() {
+        ArrayList<User> users = new ArrayList<User>(eaten);
+        eaten.clear();
+        return users;
+    }
+
+    public CommandQueue getCommands() { return commands; }
 
     public BombQueue getBombQueue() { return bombQueue; }
     public BombGenerator getBombGenerator() { return bombGenerator; }
@@ -90,9 +122,8 @@ class PlayGame extends Thread {
 
     private boolean entry() {
         if (game.getUsers().isEmpty()) {
-            prev = user;
-            next = user;
-            ring = new TokenRing(true, this);
+            view = new MembershipView(user);
+            ring = MutualExclusions.create(game.getMutex(), true, this);
 
             mutex.acquire();
             ring.requestCS();
@@ -119,6 +150,10 @@ class PlayGame extends Thread {
             // set user start position
             position.setRandomPosition();
 
+            if (ring.getIndex() != null) {
+                ring.getIndex().put(user, position);
+            }
+
             ring.releaseCS();
             mutex.release();
         } else {
@@ -132,7 +167,7 @@ class PlayGame extends Thread {
                 return false;
             }
 
-            game = (Game) Json.fromJson(response.getBody(), Game.class);
+            game = Json.fromJson(response.getBody(), Game.class);
 
             // check GAME_USER_DUPLICATION :: client side
 
@@ -143,7 +178,8 @@ class PlayGame extends Thread {
                 }
             }
 
-            ring = new TokenRing(false, this);
+            view = new MembershipView();
+            ring = MutualExclusions.create(game.getMutex(), false, this);
             ringEntryRequest = new Semaphore(1, 0);
 
             // try to put a delay here and see what happens
@@ -155,6 +191,8 @@ class PlayGame extends Thread {
             }
             */
 
+            long start = System.nanoTime();
+
             IPC.sendMessage(this, game.getUsers(), MessageType.RING_ENTRY_REQUEST, null, null, false);
 
             // waiting to enter ...
@@ -169,12 +207,18 @@ class PlayGame extends Thread {
             if (!ringEntrySucceeded) {
                 return false;
             }
+
+            joinNanos = System.nanoTime() - start;
         }
 
         return true;
     }
 
     public boolean exit(boolean inCS) {
+        return exit(inCS, false);
+    }
+
+    public boolean exit(boolean inCS, boolean quit) {
         if (!inCS) {
             mutex.acquire();
             ring.requestCS();
@@ -197,16 +241,17 @@ class PlayGame extends Thread {
             return false;
         }
 
-        if (!game.getUsers().isEmpty()) {
-            // update neighbors
-            IPC.sendMessage(this, prev, MessageType.NEIGHBORS_UPDATE, null, Json.toJson(new Neighbors(null, next)), true);
-            IPC.sendMessage(this, next, MessageType.NEIGHBORS_UPDATE, null, Json.toJson(new Neighbors(prev, null)), true);
-
-            // update user list :: client side
-            IPC.sendMessage(this, game.getUsers(), MessageType.USER_LIST_UPDATE, null, Json.toJson(game.getUsers()), true);
+        // only meaningful with the token, which is about to leave without us
+        if (ring.getIndex() != null) {
+            ring.getIndex().remove(user);
+        }
 
-            // closure socket
-            IPC.sendMessage(this, game.getUsers(), MessageType.SOCKET_CLOSURE, null, null, false);
+        if (!game.getUsers().isEmpty()) {
+            // update user list :: client side, the others derive their new neighbors and close our socket
+            // (our own view is left as it is, the token still has to reach our next)
+            ViewChange change = new ViewChange(view.getEpoch() + 1, null, null, user);
+            change.setQuit(quit);
+            IPC.sendMessage(this, game.getUsers(), MessageType.VIEW_CHANGE, null, change, true);
         }
 
         if (!inCS) {
@@ -217,9 +262,16 @@ class PlayGame extends Thread {
     }
 
     public void closeIPC() {
+        pipeline.exit();
         server.exit();
         client.exit();
         handler.exit();
+        links.exit();
+        detector.exit();
+
+        if (ring != null) {
+            ring.exit();
+        }
 
         try {
             server.join();
@@ -228,6 +280,25 @@ class PlayGame extends Thread {
         } catch (InterruptedException exc) {
             exc.printStackTrace();
         }
+
+        if (Config.metrics) {
+            System.out.println(" *** STATISTICS ***");
+            System.out.print(handler.getStats());
+            System.out.format("inbound queue: %s%n", iQueue);
+            System.out.format("outbound queue: %s%n", oQueue);
+            System.out.format("connections: %s%n", client.getPool());
+            System.out.print(ackTable);
+            System.out.println(links);
+            System.out.println(detector);
+
+            if (ring != null) {
+                System.out.println(ring);
+            }
+
+            System.out.format("position checks: %d sent, %d skipped%n", checksSent, checksSkipped);
+            System.out.format("join: %.3f ms, sponsored %d, token held avg %.3f ms%n",
+                    joinNanos / 1e6, joinsSponsored, joinsSponsored == 0 ? 0.0 : joinHoldNanos / 1e6 / joinsSponsored);
+        }
     }
 
     private void quit() throws QuitGameException {
@@ -237,9 +308,7 @@ class PlayGame extends Thread {
             bombGenerator.exit();
             bombLauncher.exit();
 
-            IPC.sendMessage(this, game.getUsers(), MessageType.GAME_USER_LEFT, null, null, true);
-
-            exit(false);
+            exit(false, true);
 
             System.out.println(" *** GAME OVER ***");
 
@@ -250,7 +319,8 @@ class PlayGame extends Thread {
         }
     }
 
-    private void updatePosition(String input) {
+    // applies, in a single hold of the critical section, the keys typed while waiting for it
+    void applyCommands() {
         mutex.acquire();
         ring.requestCS();
 
@@ -260,39 +330,60 @@ class PlayGame extends Thread {
             return;
         }
 
-        // WASD keys
-        switch (input) {
-            case "w":
-            case "W":
-                position.decY();
-                break;
-            case "a":
-            case "A":
-                position.decX();
-                break;
-            case "s":
-            case "S":
-                position.incY();
-                break;
-            case "d":
-            case "D":
-                position.incX();
-                break;
+        long start = System.currentTimeMillis();
+        ArrayList<Position> path = new ArrayList<Position>();
+        boolean moved = false;
+        int applied = 0;
+        Character command;
+
+        // the hold is bounded so that the others get the critical section too (at least one command is applied)
+        while ((applied == 0 || System.currentTimeMillis() - start < Config.maxHold) && (command = commands.poll()) != null) {
+            applied++;
+
+            // WASD keys
+            switch (command) {
+                case 'w':
+                case 'W':
+                    position.decY();
+                    path.add(new Position(position));
+                    break;
+                case 'a':
+                case 'A':
+                    position.decX();
+                    path.add(new Position(position));
+                    break;
+                case 's':
+                case 'S':
+                    position.incY();
+                    path.add(new Position(position));
+                    break;
+                case 'd':
+                case 'D':
+                    position.incX();
+                    path.add(new Position(position));
+                    break;
+                case 'b':
+                case 'B':
+                    // the others learn about the moves before the bomb
+                    moved |= checkPath(path);
+                    launchBomb();
+                    break;
+            }
         }
 
-        System.out.println("Waiting to communicate your move...");
-        IPC.sendMessage(this, game.getUsers(), MessageType.POSITION_CHECK, null, Json.toJson(position), true);
-        System.out.println("...your move has been communicated.");
+        moved |= checkPath(path);
+
+        for (User tmp : takeEaten()) {
+            if (ring.getIndex() != null) {
+                ring.getIndex().remove(tmp);
+            }
 
-        if (eaten != null) {
             score++;
-            System.out.format("You ate %s and your score was increased by 1! :)\n", eaten.getName());
+            System.out.format("You ate %s and your score was increased by 1! :)\n", tmp.getName());
 
             // closure last socket
-            AddressPort key = new AddressPort(eaten.getAddress(), eaten.getPort());
+            AddressPort key = new AddressPort(tmp.getAddress(), tmp.getPort());
             client.closeSocket(key);
-
-            eaten = null;
         }
 
         if (score >= game.getScore()) {
@@ -306,7 +397,6 @@ class PlayGame extends Thread {
             HashMap<String, String> head = new HashMap<String, String>();
             head.put("output", String.format("Oh no, %s reached the target score and won the game! :(", user.getName()));
 
-            User[] users = game.getUsers().toArray(new User[game.getUsers().size()]);
             for (User user : game.getUsers()) {
                 IPC.sendMessage(this, user, MessageType.GAME_OVER, head, null, true);
             }
@@ -317,7 +407,7 @@ class PlayGame extends Thread {
             exit(true);
         }
 
-        if (!getGameOver()) {
+        if (!getGameOver() && moved) {
             System.out.format("Your new position is: %s.\n", position);
             System.out.println("Where do you want to move? (W = up, A = left, S = down, D = right)");
         }
@@ -326,6 +416,7 @@ class PlayGame extends Thread {
         mutex.release();
 
         if (gameOver) {
+            commands.close();
             ring.unlock();
             client.exit();
             handler.exit();
@@ -333,30 +424,52 @@ class PlayGame extends Thread {
         }
     }
 
-    private void launchBomb() {
-        mutex.acquire();
-        ring.requestCS();
+    // called holding the critical section: sends the positions moved through so far, false if there were none
+    private boolean checkPath(ArrayList<Position> path) {
+        if (path.isEmpty()) {
+            return false;
+        }
 
-        if (gameOver) {
-            // ring.releaseCS();
-            mutex.release();
-            return;
+        // every intermediate position is checked, all in one message,
+        // only by the peers that can be there when the index is known
+        ArrayList<User> recipients = game.getUsers();
+        PositionIndex index = ring.getIndex();
+
+        if (index != null) {
+            recipients = index.near(path, game.getUsers());
+            index.put(user, position);
         }
 
+        checksSent += recipients.size();
+        checksSkipped += game.getUsers().size() - recipients.size();
+
+        System.out.println("Waiting to communicate your move...");
+        if (recipients.isEmpty() || IPC.sendMessage(this, recipients, MessageType.POSITION_CHECK, null, path.toArray(new Position[0]), true)) {
+            System.out.println("...your move has been communicated.");
+        } else {
+            System.out.println("...your move has been communicated, but some players didn't answer.");
+        }
+
+        path.clear();
+        return true;
+    }
+
+    // called holding the critical section
+    private void launchBomb() {
         Bomb bomb = bombBag.pop();
 
         if (bomb == null) {
             System.out.println("Sorry, your bomb bag is empty. :/");
         } else {
             System.out.format("Waiting to trigger a %s bomb...\n", bomb.getArea().toString().toLowerCase());
-            IPC.sendMessage(this, game.getUsers(), MessageType.BOMB_LAUNCH, null, Json.toJson(bomb), true);
-            System.out.println("...the bomb was launched and it will explode in 5 seconds!");
+            if (IPC.sendMessage(this, game.getUsers(), MessageType.BOMB_LAUNCH, null, bomb, true)) {
+                System.out.println("...the bomb was launched and it will explode in 5 seconds!");
+            } else {
+                System.out.println("...the bomb was launched and it will explode in 5 seconds, but some players didn't answer!");
+            }
 
             bombQueue.push(bomb);
         }
-
-        ring.releaseCS();
-        mutex.release();
     }
 
     // keyboard input
@@ -378,13 +491,20 @@ class PlayGame extends Thread {
         this.user = user;
         this.game = game;
 
+        ackTable = new AckTable();
+        links = new Links(this);
+        detector = new FailureDetector(this);
+
         iQueue = new MessageQueue();
         oQueue = new MessageQueue();
 
-        server = new Server(user.getPort(), iQueue);
-        client = new Client(oQueue);
+        if (Config.transport.equals("nio")) {
+            server = new NioServer(user.getPort(), iQueue, Config.eventLoops);
+        } else {
+            server = new Server(user.getPort(), iQueue);
+        }
+        client = new Client(oQueue, links);
         handler = new MessageHandler(this);
-        ackMap = new HashMap<String, Acknowledgment>();
 
         mutex = new Semaphore(1);
 
@@ -392,7 +512,10 @@ class PlayGame extends Thread {
 
         score = 0;
 
-        eaten = null;
+        eaten = new ArrayList<User>();
+
+        commands = new CommandQueue();
+        pipeline = new InputPipeline(this);
 
         double alpha = 0.5;
         double threshold = 10.0;
@@ -417,7 +540,8 @@ class PlayGame extends Thread {
                 Pattern pattern;
                 Matcher matcher;
 
-                pattern = Pattern.compile("q|Q|w|W|a|A|s|S|d|D|b|B");
+                // several moves and bombs can be typed at once
+                pattern = Pattern.compile("q|Q|[wWaAsSdDbB]+");
                 matcher = pattern.matcher(input);
 
                 if (!matcher.matches()) {
@@ -435,6 +559,7 @@ class PlayGame extends Thread {
 
             bombGenerator.start();
             bombLauncher.start();
+            pipeline.start();
 
             try {
                 while (true) {
@@ -446,23 +571,13 @@ class PlayGame extends Thread {
                         switch (input) {
                             case "q":
                             case "Q":
+                                // the keys already typed go first
+                                commands.drain();
                                 quit();
                                 break;
 
-                            case "w":
-                            case "W":
-                            case "a":
-                            case "A":
-                            case "s":
-                            case "S":
-                            case "d":
-                            case "D":
-                                updatePosition(input);
-                                break;
-
-                            case "b":
-                            case "B":
-                                launchBomb();
+                            default:
+                                commands.push(input);
                                 break;
                         }
                     } else {
@@ -474,4 +589,26 @@ class PlayGame extends Thread {
             }
         }
     }
-}
\ No newline at end of file
+}
+
+// applies the typed keys in batches, one batch per hold of the critical section
+class InputPipeline extends Thread {
+    private PlayGame play;
+
+    public InputPipeline(PlayGame play) {
+        this.play = play;
+
+        // start();
+    }
+
+    public void run() {
+        while (play.getCommands().await()) {
+            play.applyCommands();
+            play.getCommands().done();
+        }
+    }
+
+    public void exit() {
+        play.getCommands().close();
+    }
+}
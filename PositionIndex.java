@@ -0,0 +1,482 @@
+// Where every peer is, replicated at every peer and kept up to date by the changes travelling with the token
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+// positions only change in the critical section, so the copy held with the token is exact;
+// every change is numbered and logged, so a copy left behind catches up with the changes made since
+class PositionIndex {
+    private static final int LOG = 1024;   // changes kept, an older copy gets the whole index
+
+    private HashMap<User, Position> positions;
+    private HashMap<Integer, ArrayList<User>> cells;
+    private OccupancyGrid occupancy;
+
+    private long version;                   // changes made so far
+    private long floor;                     // the log holds every change after this version
+    private ArrayDeque<Entry> log;          // a null position: the user was removed
+
+    public PositionIndex() {
+        positions = new HashMap<User, Position>();
+        cells = new HashMap<Integer, ArrayList<User>>();
+        occupancy = new OccupancyGrid();
+        log = new ArrayDeque<Entry>();
+    }
+
+    static int cell(Position position) {
+        return position.getY() * position.getGrid() + position.getX();
+    }
+
+    public synchronized void put(User user, Position position) {
+        position = new Position(position);
+        place(user, position);
+        record(new Entry(user, position));
+    }
+
+    public synchronized void remove(User user) {
+        if (drop(user)) {
+            record(new Entry(user, null));
+        }
+    }
+
+    private void record(Entry change) {
+        version++;
+        log.add(change);
+
+        if (log.size() > LOG) {
+            log.poll();
+            floor++;
+        }
+    }
+
+    // without a log entry
+    private void place(User user, Position position) {
+        drop(user);
+
+        positions.put(user, position);
+
+        ArrayList<User> users = cells.get(cell(position));
+
+        if (users == null) {
+            users = new ArrayList<User>(1);
+            cells.put(cell(position), users);
+            occupancy.add(cell(position));
+        }
+
+        users.add(user);
+    }
+
+    private boolean drop(User user) {
+        Position position = positions.remove(user);
+
+        if (position == null) {
+            return false;
+        }
+
+        ArrayList<User> users = cells.get(cell(position));
+        users.remove(user);
+
+        if (users.isEmpty()) {
+            cells.remove(cell(position));
+            occupancy.remove(cell(position));
+        }
+
+        return true;
+    }
+
+    public synchronized Position get(User user) {
+        return positions.get(user);
+    }
+
+    public synchronized int size() {
+        return positions.size();
+    }
+
+    // whether the position of each of the users is known
+    public synchronized boolean knows(List<User> users) {
+        for (User user : users) {
+            if (!positions.containsKey(user)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // a random free cell, null if the grid is full
+    public synchronized Position freePosition(int grid) {
+        return occupancy.sample(grid);
+    }
+
+    // the peers among users that could be on one of the cells of path:
+    // the occupants, and whoever the index doesn't know about yet
+    public synchronized ArrayList<User> near(List<Position> path, List<User> users) {
+        LinkedHashSet<User> result = new LinkedHashSet<User>();
+
+        for (Position position : path) {
+            ArrayList<User> tmp = cells.get(cell(position));
+
+            if (tmp != null) {
+                result.addAll(tmp);
+            }
+        }
+
+        result.retainAll(users);
+
+        for (User user : users) {
+            if (!positions.containsKey(user)) {
+                result.add(user);
+            }
+        }
+
+        return new ArrayList<User>(result);
+    }
+
+    // replication
+
+    @JsonIgnore
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    // the changes made after base, null if the log doesn't go back that far
+    public synchronized ArrayList<Entry> changesSince(long base) {
+        if (base < floor || base > version) {
+            return null;
+        }
+
+        ArrayList<Entry> changes = new ArrayList<Entry>((int) (version - base));
+        long seq = floor;
+
+        for (Entry change : log) {
+            if (++seq > base) {
+                changes.add(change);
+            }
+        }
+
+        return changes;
+    }
+
+    // replays the changes made after base, those we already have are skipped;
+    // false if some change before them is missing here
+    public synchronized boolean apply(long base, List<Entry> changes) {
+        if (base > version) {
+            return false;
+        }
+
+        long seq = base;
+
+        for (Entry change : changes) {
+            if (++seq <= version) {
+                continue;
+            }
+
+            if (change.getPosition() == null) {
+                drop(change.getUser());
+            } else {
+                place(change.getUser(), change.getPosition());
+            }
+
+            record(change);
+        }
+
+        return true;
+    }
+
+    // empty, at version: the next changes are numbered from there
+    public synchronized void reset(long version) {
+        positions.clear();
+        cells.clear();
+        occupancy = new OccupancyGrid();
+        log.clear();
+
+        this.version = version;
+        floor = version;
+    }
+
+    // serialized form
+
+    public synchronized ArrayList<Entry> getEntries() {
+        ArrayList<Entry> entries = new ArrayList<Entry>(positions.size());
+
+        for (Map.Entry<User, Position> entry : positions.entrySet()) {
+            entries.add(new Entry(entry.getKey(), entry.getValue()));
+        }
+
+        return entries;
+    }
+
+    public synchronized void setEntries(ArrayList<Entry> entries) {
+        positions.clear();
+        cells.clear();
+        occupancy = new OccupancyGrid();
+
+        for (Entry entry : entries) {
+            place(entry.getUser(), entry.getPosition());
+        }
+    }
+
+    // the whole index at version, as sent to a copy that cannot catch up
+    public synchronized void install(long version, List<Entry> entries) {
+        reset(version);
+
+        for (Entry entry : entries) {
+            place(entry.getUser(), entry.getPosition());
+        }
+    }
+
+    @JsonIgnore
+    public synchronized Map<User, Position> getPositions() {
+        return new HashMap<User, Position>(positions);
+    }
+
+    static class Entry {
+        private User user;
+        private Position position;
+
+        public Entry() {}
+
+        public Entry(User user, Position position) {
+            this.user = user;
+            this.position = position;
+        }
+
+        public User getUser() { return user; }
+        public void setUser(User value) { user = value; }
+
+        public Position getPosition() { return position; }
+        public void setPosition(Position value) { position = value; }
+    }
+}
+
+// what travels with the token: the changes made after base up to version, or the whole index
+class IndexUpdate {
+    private long base;
+    private long version;
+    private boolean full;
+    private ArrayList<PositionIndex.Entry> changes;
+
+    public IndexUpdate() {}
+
+    public IndexUpdate(long base, long version, boolean full, ArrayList<PositionIndex.Entry> changes) {
+        this.base = base;
+        this.version = version;
+        this.full = full;
+        this.changes = changes;
+    }
+
+    public long getBase() { return base; }
+    public void setBase(long number) { base = number; }
+
+    public long getVersion() { return version; }
+    public void setVersion(long number) { version = number; }
+
+    public boolean isFull() { return full; }
+    public void setFull(boolean flag) { full = flag; }
+
+    public ArrayList<PositionIndex.Entry> getChanges() { return changes; }
+    public void setChanges(ArrayList<PositionIndex.Entry> list) { changes = list; }
+}
+
+// the index as this peer last saw it: exact while the token is here, and sent along as the changes
+// the next holder lacks, so an idle token carries next to nothing
+class IndexReplica {
+    private PositionIndex index;                // null until the first token
+    private long generation;                    // of the token it came with
+    private HashMap<User, long[]> known;        // generation and version of each peer's copy, as far as we know
+
+    // statistics
+    private long fullUpdates;
+    private long deltaUpdates;
+    private long changesSent;
+
+    public IndexReplica() {
+        known = new HashMap<User, long[]>();
+    }
+
+    public synchronized PositionIndex get() {
+        return index;
+    }
+
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    public synchronized long getVersion() {
+        return (index == null) ? -1 : index.getVersion();
+    }
+
+    // a new token, the index starts over
+    public synchronized void start(long gen) {
+        index = new PositionIndex();
+        generation = gen;
+    }
+
+    // to be sent with the token to user: what its copy lacks, or the whole index if we can't tell
+    public synchronized IndexUpdate outgoing(User user) {
+        if (index == null) {
+            return null;
+        }
+
+        long[] tmp = known.get(user);
+        ArrayList<PositionIndex.Entry> changes = (tmp != null && tmp[0] == generation) ? index.changesSince(tmp[1]) : null;
+        IndexUpdate update;
+
+        if (changes != null) {
+            update = new IndexUpdate(tmp[1], index.getVersion(), false, changes);
+            deltaUpdates++;
+            changesSent += changes.size();
+        } else {
+            update = new IndexUpdate(0, index.getVersion(), true, index.getEntries());
+            fullUpdates++;
+        }
+
+        known.put(user, new long[] { generation, index.getVersion() });
+        return update;
+    }
+
+    // the update that came with a token of generation gen
+    public synchronized void incoming(IndexUpdate update, long gen) {
+        if (update != null && update.isFull()) {
+            index = new PositionIndex();
+            index.install(update.getVersion(), update.getChanges());
+        } else if (update == null || index == null || generation != gen || !index.apply(update.getBase(), update.getChanges())) {
+            // some change before these is missing here (we left and came back, the token was regenerated):
+            // we keep only what the update says, whoever is left out is just checked on every move
+            long base = (update == null) ? 0 : update.getBase();
+
+            index = new PositionIndex();
+            index.reset(base);
+
+            if (update != null) {
+                index.apply(base, update.getChanges());
+            }
+        }
+
+        generation = gen;
+    }
+
+    // the version of user's copy, as its request says
+    public synchronized void learned(User user, long gen, long version) {
+        known.put(user, new long[] { gen, version });
+    }
+
+    public synchronized void forget(User user) {
+        known.remove(user);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("index: %d sent whole, %d as changes (%.1f changes each)",
+                fullUpdates, deltaUpdates, deltaUpdates == 0 ? 0.0 : (double) changesSent / deltaUpdates);
+    }
+}
+
+// set of occupied cells (y * grid + x), packed in an open addressing table of ints
+class OccupancyGrid {
+    private int[] keys;     // cell + 1, 0 is a free slot
+    private int size;
+
+    public OccupancyGrid() {
+        keys = new int[16];
+        size = 0;
+    }
+
+    private int index(int key) {
+        int mask = keys.length - 1;
+        int i = (int) LongMap.mix(key) & mask;
+
+        while (keys[i] != 0 && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+
+        return i;
+    }
+
+    public boolean contains(int cell) {
+        return keys[index(cell + 1)] != 0;
+    }
+
+    public void add(int cell) {
+        if (2 * (size + 1) > keys.length) {
+            resize(2 * keys.length);
+        }
+
+        int i = index(cell + 1);
+
+        if (keys[i] == 0) {
+            keys[i] = cell + 1;
+            size++;
+        }
+    }
+
+    public void remove(int cell) {
+        int mask = keys.length - 1;
+        int i = index(cell + 1);
+
+        if (keys[i] == 0) {
+            return;
+        }
+
+        keys[i] = 0;
+        size--;
+
+        // shift back the entries of the same cluster
+        int j = (i + 1) & mask;
+
+        while (keys[j] != 0) {
+            int key = keys[j];
+            keys[j] = 0;
+            keys[index(key)] = key;
+            j = (j + 1) & mask;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // uniform among the free cells when sampling succeeds, which takes 10 tries on average at 90% occupancy
+    public Position sample(int grid) {
+        int cells = grid * grid;
+
+        if (size >= cells) {
+            return null;
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int cell = random.nextInt(cells);
+
+        for (int i = 0; i < 64 && contains(cell); i++) {
+            cell = random.nextInt(cells);
+        }
+
+        // nearly full: the next free cell is at most size steps away
+        while (contains(cell)) {
+            cell = (cell + 1) % cells;
+        }
+
+        Position position = new Position(grid);
+        position.setX(cell % grid);
+        position.setY(cell / grid);
+        return position;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+
+        keys = new int[capacity];
+
+        for (int key : oldKeys) {
+            if (key != 0) {
+                keys[index(key)] = key;
+            }
+        }
+    }
+}
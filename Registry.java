@@ -0,0 +1,577 @@
+// Users and games known to the server
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// lookups never lock: a published game is never modified, every change to it replaces it with a copy;
+// changes to the same game or user are serialized by one of a fixed set of locks;
+// with a data directory, a change is answered, and its events published, once it is in the journal
+class Registry {
+    private static final int STRIPES = 64;
+
+    private ConcurrentHashMap<AddressPort, User> users;
+    private ConcurrentHashMap<String, Game> games;
+    private Object[] locks;
+
+    // bumped by every change to the games, the game list is serialized again only when it moves
+    private AtomicLong version;
+    private long boot;
+    private volatile GameList gameList;
+
+    private EventLog events;
+
+    private Journal journal;
+    private boolean replaying;
+    private HashMap<Object, Undo> undone;   // by key, the first change the journal failed to write
+
+    public Registry() {
+        users = new ConcurrentHashMap<AddressPort, User>();
+        games = new ConcurrentHashMap<String, Game>();
+        locks = new Object[STRIPES];
+        version = new AtomicLong();
+        boot = System.currentTimeMillis();
+        events = new EventLog();
+        undone = new HashMap<Object, Undo>();
+
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+
+        if (Config.dataDir != null) {
+            replaying = true;
+            Journal tmp = new Journal(new File(Config.dataDir), this);
+            replaying = false;
+            journal = tmp;
+        }
+    }
+
+    private Object lock(Object key) {
+        return locks[(key.hashCode() & 0x7FFFFFFF) % STRIPES];
+    }
+
+    // queues the change for the journal, to be called holding the lock so that the changes to a key keep their order
+    private long record(JournalOp op, String name, User user, Game game) {
+        return (journal == null) ? 0 : journal.append(new JournalEntry(op, name, user, game));
+    }
+
+    // throws JournalException if the change to key didn't make it to disk, once the key is back to before it
+    private <K, V> void sync(long seq, ConcurrentHashMap<K, V> map, K key, V before) {
+        if (journal == null) {
+            return;
+        }
+
+        try {
+            journal.await(seq);
+        } catch (JournalException exc) {
+            undo(seq, map, key, before);
+            throw exc;
+        }
+    }
+
+    // every change after a failed one fails too: the key goes back to its value before the first of them,
+    // whichever of their callers gets here first
+    @SuppressWarnings("unchecked")
+    private <K, V> void undo(long seq, ConcurrentHashMap<K, V> map, K key, V before) {
+        synchronized (lock(key)) {
+            Undo first;
+
+            synchronized (undone) {
+                first = undone.get(key);
+
+                if (first == null || first.seq > seq) {
+                    first = new Undo(seq, before);
+                    undone.put(key, first);
+                }
+            }
+
+            if (first.before == null) {
+                map.remove(key);
+            } else {
+                map.put(key, (V) first.before);
+            }
+
+            version.incrementAndGet();
+        }
+    }
+
+    // once the journal has failed, changes are refused: they could not be made durable
+    private void writable() {
+        if (journal != null) {
+            journal.check();
+        }
+    }
+
+    // numbers the event, to be called holding the lock so that the events of a key keep their order
+    private void event(ArrayList<Event> changes, EventType type, String game, User user, Game info) {
+        if (!replaying) {
+            changes.add(events.reserve(type, game, user, info));
+        }
+    }
+
+    // outside the lock: waits for the journal, then lets the subscribers see the change
+    private void commit(long seq, ArrayList<Event> changes, String name, Game before) {
+        try {
+            sync(seq, games, name, before);
+        } catch (JournalException exc) {
+            events.cancel(changes);
+            throw exc;
+        }
+
+        if (!changes.isEmpty()) {
+            events.publish(changes);
+        }
+    }
+
+    private static AddressPort key(User user) {
+        return new AddressPort(user.getAddress(), user.getPort());
+    }
+
+    public EventLog getEvents() { return events; }
+
+    /* **************************************** USERS **************************************** */
+
+    public Collection<User> getUsers() {
+        return users.values();
+    }
+
+    public User getUser(AddressPort key) {
+        return users.get(key);
+    }
+
+    // false if the address-port is taken
+    public boolean addUser(User user) {
+        long seq;
+
+        synchronized (lock(key(user))) {
+            writable();
+
+            if (users.containsKey(key(user))) {
+                return false;
+            }
+
+            // queued first: the map is left alone if the journal refuses it
+            seq = record(JournalOp.ADD_USER, null, user, null);
+            users.put(key(user), user);
+        }
+
+        sync(seq, users, key(user), null);
+        return true;
+    }
+
+    public boolean removeUser(AddressPort key) {
+        long seq;
+        User before;
+
+        synchronized (lock(key)) {
+            writable();
+
+            before = users.get(key);
+
+            if (before == null) {
+                return false;
+            }
+
+            seq = record(JournalOp.REMOVE_USER, null, new User(null, key.getAddress(), key.getPort()), null);
+            users.remove(key);
+        }
+
+        sync(seq, users, key, before);
+        return true;
+    }
+
+    /* **************************************** GAMES **************************************** */
+
+    public Collection<Game> getGames() {
+        return games.values();
+    }
+
+    public Game getGame(String name) {
+        return games.get(name);
+    }
+
+    // the OK message carrying the game list, ready to be sent
+    public GameList getGameList() {
+        GameList snapshot = gameList;
+        long current = version.get();
+
+        if (snapshot != null && snapshot.getVersion() == current) {
+            return snapshot;
+        }
+
+        // taken after reading the version: it can only be newer than its tag, and is then replaced on the next call
+        Message message = new Message();
+        message.setType(MessageType.OK);
+        message.setBody(Json.toJson(games.values()));
+
+        snapshot = new GameList(current, String.format("\"%x-%x\"", boot, current), Json.toBytes(message));
+        gameList = snapshot;
+
+        return snapshot;
+    }
+
+    // false if the name is taken
+    public boolean addGame(Game game) {
+        ArrayList<Event> changes = new ArrayList<Event>();
+        long seq;
+
+        game = new Game(game);
+
+        synchronized (lock(game.getName())) {
+            writable();
+
+            if (games.containsKey(game.getName())) {
+                return false;
+            }
+
+            seq = record(JournalOp.ADD_GAME, game.getName(), null, game);
+            games.put(game.getName(), game);
+            version.incrementAndGet();
+            event(changes, EventType.GAME_CREATED, game.getName(), null, game);
+        }
+
+        commit(seq, changes, game.getName(), null);
+        return true;
+    }
+
+    public boolean removeGame(String name) {
+        ArrayList<Event> changes = new ArrayList<Event>();
+        long seq;
+        Game before;
+
+        synchronized (lock(name)) {
+            writable();
+
+            before = games.get(name);
+
+            if (before == null) {
+                return false;
+            }
+
+            seq = record(JournalOp.REMOVE_GAME, name, null, null);
+            games.remove(name);
+            version.incrementAndGet();
+            event(changes, EventType.GAME_REMOVED, name, null, null);
+        }
+
+        commit(seq, changes, name, before);
+        return true;
+    }
+
+    public MessageType joinGame(String name, User user) {
+        ArrayList<Event> changes = new ArrayList<Event>();
+        long seq;
+        Game before;
+
+        synchronized (lock(name)) {
+            writable();
+
+            before = games.get(name);
+
+            if (before == null) {
+                return MessageType.GAME_NOT_EXIST;
+            }
+
+            for (User tmp : before.getUsers()) {
+                if (tmp.getName().equals(user.getName())) {
+                    return MessageType.GAME_USER_DUPLICATION;
+                }
+            }
+
+            seq = record(JournalOp.JOIN_GAME, name, user, null);
+
+            Game game = new Game(before);
+            game.getUsers().add(user);
+            games.put(name, game);
+            version.incrementAndGet();
+            event(changes, EventType.USER_JOINED, name, user, null);
+        }
+
+        commit(seq, changes, name, before);
+        return MessageType.OK;
+    }
+
+    // the game is over once its last user has left
+    public MessageType leaveGame(String name, String user) {
+        ArrayList<Event> changes = new ArrayList<Event>();
+        long seq;
+        Game before;
+
+        synchronized (lock(name)) {
+            writable();
+
+            Game game = games.get(name);
+            before = game;
+
+            if (game == null) {
+                return MessageType.GAME_NOT_EXIST;
+            }
+
+            ArrayList<User> list = new ArrayList<User>(game.getUsers());
+            User left = null;
+
+            for (User tmp : list) {
+                if (tmp.getName().equals(user)) {
+                    left = tmp;
+                    break;
+                }
+            }
+
+            list.remove(left);
+
+            seq = record(JournalOp.LEAVE_GAME, name, new User(user, null, 0), null);
+
+            if (left != null) {
+                event(changes, EventType.USER_LEFT, name, left, null);
+            }
+
+            if (list.isEmpty()) {
+                games.remove(name);
+                event(changes, EventType.GAME_REMOVED, name, null, null);
+            } else {
+                game = new Game(game);
+                game.setUsers(list);
+                games.put(name, game);
+            }
+
+            version.incrementAndGet();
+        }
+
+        commit(seq, changes, name, before);
+        return MessageType.OK;
+    }
+
+    /* **************************************** PARTITIONING **************************************** */
+
+    private static final int HANDOVER_ATTEMPTS = 3;
+
+    // hands the games and users that ring assigns to another node over to it, the number of them moved;
+    // no lock is held while the owner is called: what is sent is removed only if it hasn't changed meanwhile
+    public int rebalance(HashRing ring, String self) {
+        int moved = 0;
+
+        for (String name : games.keySet()) {
+            String owner = ring.owner(name);
+
+            if (!owner.equals(self) && handOver(owner, name)) {
+                moved++;
+            }
+        }
+
+        for (User user : users.values()) {
+            String owner = ring.owner(user.getAddress() + "-" + user.getPort());
+
+            if (owner.equals(self)) {
+                continue;
+            }
+
+            MessageType result = SRC.send(owner, "add_user", "POST", user);
+
+            if ((result == MessageType.OK || result == MessageType.USER_ADDRESSPORT_UNAVAILABLE) && handedOver(user)) {
+                moved++;
+            }
+        }
+
+        return moved;
+    }
+
+    // false if the game stays here, to be sent again by the next rebalance
+    private boolean handOver(String owner, String name) {
+        HashMap<String, User> sent = new HashMap<String, User>();     // users added to the copy at owner, by name
+        Game game = games.get(name);
+
+        if (game == null) {
+            return false;
+        }
+
+        MessageType result = SRC.send(owner, "add_game", "POST", game);
+
+        if (result == MessageType.OK) {
+            for (User user : game.getUsers()) {
+                sent.put(user.getName(), user);
+            }
+        } else if (result != MessageType.GAME_NAME_UNAVAILABLE) {
+            return false;
+        }
+
+        // created there in the meantime, or joined or left here while it was sent: the copy is brought up to date
+        for (int i = 0; i < HANDOVER_ATTEMPTS; i++) {
+            if (!update(owner, name, game, sent) || game == null) {
+                return false;
+            }
+
+            ArrayList<Event> changes = new ArrayList<Event>();
+            long seq;
+
+            synchronized (lock(name)) {
+                writable();
+
+                if (games.get(name) != game) {
+                    game = games.get(name);
+                    continue;
+                }
+
+                seq = record(JournalOp.REMOVE_GAME, name, null, null);
+                games.remove(name);
+                version.incrementAndGet();
+                event(changes, EventType.GAME_MOVED, name, null, null);
+            }
+
+            commit(seq, changes, name, game);
+            return true;
+        }
+
+        return false;
+    }
+
+    // adds to the copy at owner the users of game it lacks, and removes those that have left (all of them once game is null)
+    private static boolean update(String owner, String name, Game game, HashMap<String, User> sent) {
+        HashMap<String, User> current = new HashMap<String, User>();
+
+        if (game != null) {
+            for (User user : game.getUsers()) {
+                current.put(user.getName(), user);
+            }
+        }
+
+        for (User user : current.values()) {
+            if (sent.containsKey(user.getName())) {
+                continue;
+            }
+
+            MessageType result = SRC.send(owner, "game_list/" + name, "PUT", user);
+
+            // a duplicate is a user of the game there, not ours to remove
+            if (result == MessageType.OK) {
+                sent.put(user.getName(), user);
+            } else if (result != MessageType.GAME_USER_DUPLICATION) {
+                return false;
+            }
+        }
+
+        for (String user : new ArrayList<String>(sent.keySet())) {
+            if (current.containsKey(user)) {
+                continue;
+            }
+
+            MessageType result = SRC.send(owner, "game_list/" + name + "/" + user, "DELETE", null);
+
+            if (result != MessageType.OK && result != MessageType.GAME_NOT_EXIST) {
+                return false;
+            }
+
+            sent.remove(user);
+        }
+
+        return true;
+    }
+
+    // false if the user has been removed or replaced since it was sent
+    private boolean handedOver(User user) {
+        long seq;
+
+        synchronized (lock(key(user))) {
+            writable();
+
+            // the same instance: users with the same address-port are equal
+            if (users.get(key(user)) != user) {
+                return false;
+            }
+
+            seq = record(JournalOp.REMOVE_USER, null, user, null);
+            users.remove(key(user));
+        }
+
+        sync(seq, users, key(user), user);
+        return true;
+    }
+
+    /* **************************************** RECOVERY **************************************** */
+
+    public void restore(User[] userArray, Game[] gameArray) {
+        for (User user : userArray) {
+            users.put(key(user), user);
+        }
+
+        for (Game game : gameArray) {
+            games.put(game.getName(), game);
+        }
+
+        version.incrementAndGet();
+    }
+
+    public void replay(JournalEntry entry) {
+        switch (entry.getOp()) {
+            case ADD_USER:
+                addUser(entry.getUser());
+                break;
+            case REMOVE_USER:
+                removeUser(key(entry.getUser()));
+                break;
+            case ADD_GAME:
+                addGame(entry.getGame());
+                break;
+            case REMOVE_GAME:
+                removeGame(entry.getName());
+                break;
+            case JOIN_GAME:
+                joinGame(entry.getName(), entry.getUser());
+                break;
+            case LEAVE_GAME:
+                leaveGame(entry.getName(), entry.getUser().getName());
+                break;
+        }
+    }
+}
+
+// the value of a key before the first of its changes the journal failed to write
+class Undo {
+    final long seq;
+    final Object before;    // null: the key was absent
+
+    Undo(long seq, Object before) {
+        this.seq = seq;
+        this.before = before;
+    }
+}
+
+// a serialized game list and its entity tag
+class GameList {
+    private long version;
+    private String tag;
+    private byte[] bytes;
+
+    public GameList(long version, String tag, byte[] bytes) {
+        this.version = version;
+        this.tag = tag;
+        this.bytes = bytes;
+    }
+
+    public long getVersion() { return version; }
+    public String getTag() { return tag; }
+    public byte[] getBytes() { return bytes; }
+
+    // If-None-Match holds a list of tags, possibly weak, or *
+    public boolean matches(String header) {
+        if (header == null) {
+            return false;
+        }
+
+        for (String tmp : header.split(",")) {
+            tmp = tmp.trim();
+
+            if (tmp.startsWith("W/")) {
+                tmp = tmp.substring(2);
+            }
+
+            if (tmp.equals("*") || tmp.equals(tag)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -2,13 +2,32 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 class SRC {
     public static String serverURL = "http://localhost:8080/MyProject_war_exploded/";
 
+    // the registry is partitioned among these nodes (-Dmmog.nodes), or kept whole by serverURL
+    private static HashRing ring = new HashRing(Config.nodes == null ? serverURL : Config.nodes);
+
+    // last game list received from each node, and its tag
+    private static HashMap<String, Game[]> games = new HashMap<String, Game[]>();
+    private static HashMap<String, String> gamesTag = new HashMap<String, String>();
+    private static Lobby lobby;
+
+    public static String[] nodes() {
+        return ring.getNodes();
+    }
+
     public static Message httpRequest(String resource, String method, Map<String, String> header, String content) {
+        return httpRequest(serverURL, resource, method, header, content, null);
+    }
+
+    // the response headers are copied in responseHeader, with lower case names
+    public static Message httpRequest(String node, String resource, String method, Map<String, String> header, String content, Map<String, String> responseHeader) {
 
         // request
 
@@ -16,7 +35,7 @@ class SRC {
         HttpURLConnection huc = null;
 
         try {
-            url = new URL(serverURL + resource);
+            url = new URL(node + resource);
         } catch (MalformedURLException exc) {
             exc.printStackTrace();
         }
@@ -43,7 +62,7 @@ class SRC {
             huc.setDoOutput(true);
             try {
                 OutputStream out = huc.getOutputStream();
-                out.write(content.getBytes());
+                out.write(content.getBytes(StandardCharsets.UTF_8));
                 out.close();
             } catch (IOException exc) {
                 exc.printStackTrace();
@@ -52,76 +71,125 @@ class SRC {
 
         // response
 
-        if (huc.getContentLengthLong() > 0) {
-            String response = "";
-            int tmp;
-
-            try {
-                InputStream in = huc.getInputStream();
-                while ((tmp = in.read()) != -1) {
-                    response += (char) tmp;
+        if (responseHeader != null) {
+            for (Map.Entry<String, List<String>> obj : huc.getHeaderFields().entrySet()) {
+                if (obj.getKey() != null && !obj.getValue().isEmpty()) {
+                    responseHeader.put(obj.getKey().toLowerCase(), obj.getValue().get(0));
                 }
-                in.close();
-            } catch (IOException exc) {
-                exc.printStackTrace();
             }
+        }
+
+        int code = -1;
+
+        try {
+            code = huc.getResponseCode();
+        } catch (IOException exc) {
+            // the node is unreachable
+        }
 
-            return (Message) Json.fromJson(response, Message.class);
+        // a large body, e.g. a batch of events, comes without a length (chunked): only an empty one is skipped
+        if (code == HttpURLConnection.HTTP_OK && huc.getContentLengthLong() != 0) {
+            // parsed straight from the stream
+            try (InputStream in = huc.getInputStream()) {
+                return Json.fromJson(in, Message.class);
+            } catch (IOException | CodecException exc) {
+                exc.printStackTrace();
+            }
         }
 
         return null;
     }
 
-    /* **************************************** USERS **************************************** */
+    // body sent as JSON text, the type of the response
+    public static MessageType send(String node, String resource, String method, Object body) {
+        HashMap<String, String> header = null;
+        String content = null;
 
-    public static MessageType addUser(User user) {
-        String content = Json.toJson(user);
-        HashMap<String, String> header = new HashMap<String, String>();
-        header.put("Content-Type", "text/plain");
-        header.put("Content-Length", Integer.toString(content.getBytes().length));
+        if (body != null) {
+            content = Json.toJson(body);
+            header = new HashMap<String, String>();
+            header.put("Content-Type", "text/plain");
+            header.put("Content-Length", Integer.toString(content.getBytes(StandardCharsets.UTF_8).length));
+        }
 
-        Message response = httpRequest("add_user", "POST", header, content);
+        Message response = httpRequest(node, resource, method, header, content, null);
         return response == null ? null : response.getType();
     }
 
+    /* **************************************** USERS **************************************** */
+
+    public static MessageType addUser(User user) {
+        return send(ring.owner(user.getAddress() + "-" + user.getPort()), "add_user", "POST", user);
+    }
+
+    // key is address-port
     public static MessageType removeUser(String key) {
-        Message response = httpRequest("user_list/" + key, "DELETE", null, null);
-        return response == null ? null : response.getType();
+        return send(ring.owner(key), "user_list/" + key, "DELETE", null);
     }
 
     /* **************************************** GAMES **************************************** */
 
+    // the games of every node, kept up to date by their change feeds
     public static Game[] gameList() {
-        Message response = httpRequest("game_list", "GET", null, null);
-        return (Game[]) Json.fromJson(response.getBody(), Game[].class);
+        return lobby().getGames();
     }
 
-    public static MessageType addGame(Game game) {
-        String content = Json.toJson(game);
+    private static synchronized Lobby lobby() {
+        if (lobby == null) {
+            lobby = new Lobby(nodes());
+        }
+        return lobby;
+    }
+
+    // the games of node, asked for only if they have changed since the last time
+    public static synchronized Game[] gameList(String node) {
         HashMap<String, String> header = new HashMap<String, String>();
-        header.put("Content-Type", "text/plain");
-        header.put("Content-Length", Integer.toString(content.getBytes().length));
+        HashMap<String, String> responseHeader = new HashMap<String, String>();
+        String tag = gamesTag.get(node);
 
-        Message response = httpRequest("add_game", "POST", header, content);
-        return response == null ? null : response.getType();
+        if (tag != null) {
+            header.put("If-None-Match", tag);
+        }
+
+        Message response = httpRequest(node, "game_list", "GET", header, null, responseHeader);
+
+        // 304 Not Modified, no body
+        if (response == null && tag != null && tag.equals(responseHeader.get("etag"))) {
+            return games.get(node);
+        }
+
+        if (response == null) {
+            return null;
+        }
+
+        games.put(node, Json.fromJson(response.getBody(), Game[].class));
+        gamesTag.put(node, responseHeader.get("etag"));
+
+        return games.get(node);
+    }
+
+    public static MessageType addGame(Game game) {
+        return send(ring.owner(game.getName()), "add_game", "POST", game);
     }
 
     public static Message viewGame(String name) {
-        return httpRequest("game_list/" + name, "GET", null, null);
+        return httpRequest(ring.owner(name), "game_list/" + name, "GET", null, null, null);
     }
 
     public static MessageType addUser(String name, User user) {
-        String content = Json.toJson(user);
-        HashMap<String, String> header = new HashMap<String, String>();
-        header.put("Content-Type", "text/plain");
-        header.put("Content-Length", Integer.toString(content.getBytes().length));
-
-        Message response = httpRequest("game_list/" + name, "PUT", header, content);
-        return response == null ? null : response.getType();
+        return send(ring.owner(name), "game_list/" + name, "PUT", user);
     }
 
     public static MessageType removeUser(String game, String user) {
-        Message response = httpRequest("game_list/" + game + "/" + user, "DELETE", null, null);
-        return response == null ? null : response.getType();
+        return send(ring.owner(game), "game_list/" + game + "/" + user, "DELETE", null);
+    }
+
+    /* **************************************** EVENTS *************************************** */
+
+    // waits for the events of node after since, an empty batch if none happens for a while;
+    // sequence numbers are per node
+    public static EventBatch events(String node, long since) {
+        Message response = httpRequest(node, "events?since=" + since, "GET", null, null, null);
+        return (response == null) ? null : response.getBodyAs(EventBatch.class);
     }
-}
\ No newline at end of file
+}
@@ -1,24 +1,26 @@
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
-import java.util.ArrayList;
-import java.util.Iterator;
+import javax.ws.rs.core.Response;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 
 @Path("/")
 public class ServerREST {
-    // resources
-    private static ArrayList<User> users = new ArrayList<User>();
-    private static ArrayList<Game> games = new ArrayList<Game>();
+    // resources, shared by the instances created for each request
+    private static Registry registry = new Registry();
 
     /* **************************************** USERS **************************************** */
 
     @GET
     @Path("/user_list")
     @Produces(MediaType.TEXT_PLAIN)
-    public synchronized String userList() {
+    public String userList() {
         Message message = new Message();
         message.setType(MessageType.OK);
 
-        message.setBody(Json.toJson(users));
+        message.setBody(Json.toJson(registry.getUsers()));
 
         return Json.toJson(message);
     }
@@ -26,13 +28,13 @@ public class ServerREST {
     @GET
     @Path("/user_list/{key}")
     @Produces(MediaType.TEXT_PLAIN)
-    public synchronized String viewUser(@PathParam("key") String key) {
+    public String viewUser(@PathParam("key") String key) {
         Message message = new Message();
         message.setType(MessageType.OK);
 
         AddressPort tmp = new AddressPort(key.split("-")[0], Integer.parseInt(key.split("-")[1]));
 
-        User user = getUserByAddressPort(tmp);
+        User user = registry.getUser(tmp);
 
         if (user == null) {
             message.setType(MessageType.USER_NOT_EXIST);
@@ -47,15 +49,12 @@ public class ServerREST {
     @Path("/add_user")
     @Consumes(MediaType.TEXT_PLAIN)
     @Produces(MediaType.TEXT_PLAIN)
-    public synchronized String addUser(String json) {
-        User user = (User) Json.fromJson(json, User.class);
+    public String addUser(String json) {
+        User user = Json.fromJson(json, User.class);
         Message message = new Message();
         message.setType(MessageType.OK);
 
-        boolean available = (getUserByAddressPort(new AddressPort(user.getAddress(), user.getPort())) == null);
-        if (available) {
-            users.add(user);
-        }
+        boolean available = registry.addUser(user);
 
         if (!available) message.setType(MessageType.USER_ADDRESSPORT_UNAVAILABLE);
 
@@ -65,18 +64,14 @@ public class ServerREST {
     @DELETE
     @Path("/user_list/{key}")
     @Produces(MediaType.TEXT_PLAIN)
-    public synchronized String removeUser(@PathParam("key") String key) {
+    public String removeUser(@PathParam("key") String key) {
         Message message = new Message();
         message.setType(MessageType.OK);
 
         AddressPort tmp = new AddressPort(key.split("-")[0], Integer.parseInt(key.split("-")[1]));
 
-        User user = getUserByAddressPort(tmp);
-
-        if (user == null) {
+        if (!registry.removeUser(tmp)) {
             message.setType(MessageType.USER_NOT_EXIST);
-        } else {
-            users.remove(user);
         }
 
         return Json.toJson(message);
@@ -87,23 +82,24 @@ public class ServerREST {
     @GET
     @Path("/game_list")
     @Produces("text/plain")
-    public synchronized String gameList() {
-        Message message = new Message();
-        message.setType(MessageType.OK);
+    public Response gameList(@HeaderParam("If-None-Match") String match) {
+        GameList snapshot = registry.getGameList();
 
-        message.setBody(Json.toJson(games));
+        if (snapshot.matches(match)) {
+            return Response.notModified().header("ETag", snapshot.getTag()).build();
+        }
 
-        return Json.toJson(message);
+        return Response.ok(snapshot.getBytes()).header("ETag", snapshot.getTag()).build();
     }
 
     @GET
     @Path("/game_list/{name}")
     @Produces(MediaType.TEXT_PLAIN)
-    public synchronized String viewGame(@PathParam("name") String name) {
+    public String viewGame(@PathParam("name") String name) {
         Message message = new Message();
         message.setType(MessageType.OK);
 
-        Game game = getGameByName(name);
+        Game game = registry.getGame(name);
 
         if (game == null) {
             message.setType(MessageType.GAME_NOT_EXIST);
@@ -118,15 +114,12 @@ public class ServerREST {
     @Path("/add_game")
     @Consumes(MediaType.TEXT_PLAIN)
     @Produces(MediaType.TEXT_PLAIN)
-    public synchronized String addGame(String json) {
-        Game game = (Game) Json.fromJson(json, Game.class);
+    public String addGame(String json) {
+        Game game = Json.fromJson(json, Game.class);
         Message message = new Message();
         message.setType(MessageType.OK);
 
-        boolean available = (getGameByName(game.getName()) == null);
-        if (available) {
-            games.add(game);
-        }
+        boolean available = registry.addGame(game);
 
         if (!available) message.setType(MessageType.GAME_NAME_UNAVAILABLE);
 
@@ -136,16 +129,12 @@ public class ServerREST {
     @DELETE
     @Path("/game_list/{name}")
     @Produces(MediaType.TEXT_PLAIN)
-    public synchronized String removeGame(@PathParam("name") String name) {
+    public String removeGame(@PathParam("name") String name) {
         Message message = new Message();
         message.setType(MessageType.OK);
 
-        Game game = getGameByName(name);
-
-        if (game == null) {
+        if (!registry.removeGame(name)) {
             message.setType(MessageType.GAME_NOT_EXIST);
-        } else {
-            games.remove(game);
         }
 
         return Json.toJson(message);
@@ -155,27 +144,10 @@ public class ServerREST {
     @Path("/game_list/{name}")
     @Consumes(MediaType.TEXT_PLAIN)
     @Produces(MediaType.TEXT_PLAIN)
-    public synchronized String addUser(@PathParam("name") String name, String json) {
-        User user = (User) Json.fromJson(json, User.class);
+    public String addUser(@PathParam("name") String name, String json) {
+        User user = Json.fromJson(json, User.class);
         Message message = new Message();
-        message.setType(MessageType.OK);
-
-        Game game = getGameByName(name);
-
-        if (game == null) {
-            message.setType(MessageType.GAME_NOT_EXIST);
-        } else {
-            for (User tmp : game.getUsers()) {
-                if (tmp.getName().equals(user.getName())) {
-                    message.setType(MessageType.GAME_USER_DUPLICATION);
-                    break;
-                }
-            }
-        }
-
-        if (message.getType() == MessageType.OK) {
-            game.getUsers().add(user);
-        }
+        message.setType(registry.joinGame(name, user));
 
         return Json.toJson(message);
     }
@@ -183,51 +155,55 @@ public class ServerREST {
     @DELETE
     @Path("/game_list/{game}/{user}")
     @Produces(MediaType.TEXT_PLAIN)
-    public synchronized String removeUser(@PathParam("game") String name, @PathParam("user") String user) {
+    public String removeUser(@PathParam("game") String name, @PathParam("user") String user) {
         Message message = new Message();
-        message.setType(MessageType.OK);
+        message.setType(registry.leaveGame(name, user));
 
-        Game game = getGameByName(name);
+        return Json.toJson(message);
+    }
 
-        if (game == null) {
-            message.setType(MessageType.GAME_NOT_EXIST);
-        } else {
-            Iterator<User> iter = game.getUsers().iterator();
+    /* **************************************** NODES **************************************** */
 
-            while (iter.hasNext()) {
-                User tmp = iter.next();
+    // the registry is now partitioned among the nodes in the body: hands over what this node no longer owns
+    @POST
+    @Path("/rebalance")
+    @Consumes(MediaType.TEXT_PLAIN)
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response rebalance(@HeaderParam("X-MMOG-Key") String key, String json) {
+        if (Config.adminKey == null || key == null ||
+                !MessageDigest.isEqual(Config.adminKey.getBytes(StandardCharsets.UTF_8), key.getBytes(StandardCharsets.UTF_8))) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
 
-                if (tmp.getName().equals(user)) {
-                    iter.remove();
-                    break;
-                }
-            }
+        String[] nodes;
 
-            if (game.getUsers().isEmpty()) {
-                games.remove(game);
-            }
+        try {
+            nodes = Json.fromJson(json, String[].class);
+        } catch (CodecException exc) {
+            nodes = null;
         }
 
-        return Json.toJson(message);
-    }
+        if (nodes == null || nodes.length == 0) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
 
-    /* *************************************************************************************** */
+        Message message = new Message();
+        message.setType(MessageType.OK);
 
-    private static User getUserByAddressPort(AddressPort key) {
-        for (User user : users) {
-            if (key.equals(new AddressPort(user.getAddress(), user.getPort()))) {
-                return user;
-            }
+        if (Config.self != null) {
+            message.setContent(registry.rebalance(new HashRing(nodes), HashRing.url(Config.self)));
         }
-        return null;
+
+        return Response.ok(Json.toJson(message)).build();
     }
 
-    private static Game getGameByName(String name) {
-        for (Game game : games) {
-            if (game.getName().equals(name)) {
-                return game;
-            }
-        }
-        return null;
+    /* **************************************** EVENTS *************************************** */
+
+    // long poll: the events after since, as soon as there is one
+    @GET
+    @Path("/events")
+    @Produces(MediaType.TEXT_PLAIN)
+    public void events(@QueryParam("since") @DefaultValue("0") long since, @Suspended AsyncResponse response) {
+        registry.getEvents().poll(since, response);
     }
-}
\ No newline at end of file
+}
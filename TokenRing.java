@@ -1,53 +1,289 @@
-class TokenRing {
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+class TokenRing implements MutualExclusion {
     private boolean haveToken;
     private boolean wantCS;
     private PlayGame play;
+    private IndexReplica replica;   // the token carries only the changes the next holder lacks
+
+    // idle token: it slows down at every round nobody uses it, and eventually it is parked
+    private int idle;           // consecutive hops without a critical section
+    private long forwardAt;     // when the idle token leaves this peer (0: it doesn't wait here)
+    private ArrayDeque<User> wakers;    // peers that asked for the token while it was in use, served in order
+    private long generation;    // bumped when a lost token is regenerated, older copies are dropped
+    private TokenFence fence;
+    private boolean unlocked;   // leaving: haveToken doesn't mean the token is here anymore
+    private boolean running;
+    private Thread idler;
+
+    // statistics
+    private long started;
+    private long hops;
+    private long idleHops;
+    private long acquisitions;
+    private long acquisitionNanos;
 
     public TokenRing(boolean flag, PlayGame play) {
         haveToken = flag;
         wantCS = false;
         this.play = play;
+        replica = new IndexReplica();
+
+        if (flag) {
+            replica.start(0);
+        }
 
-        sendToken();
+        idle = 0;
+        forwardAt = 0;
+        wakers = new ArrayDeque<User>();
+        fence = new TokenFence();
+        unlocked = false;
+        running = true;
+        started = System.currentTimeMillis();
+
+        if (Config.tokenParking) {
+            idler = new Thread(this::forwardIdleToken);
+            idler.setDaemon(true);
+            idler.start();
+        }
+
+        synchronized (this) {
+            sendToken();
+        }
     }
 
     public synchronized void requestCS() {
+        long start = System.nanoTime();
+
         wantCS = true;
+        forwardAt = 0;
+
         while (!haveToken) {
+            // the token may be parked somewhere: ask for it, and ask again if it doesn't come
+            if (Config.tokenParking) {
+                IPC.sendMessage(play, play.getNext(), MessageType.TOKEN_REQUEST, null, play.getUser(), false);
+            }
+
             try {
-                wait();
+                if (Config.tokenParking) {
+                    wait(Config.tokenWakeTimeout);
+                } else {
+                    wait();
+                }
             } catch (InterruptedException exc) {
                 exc.printStackTrace();
             }
         }
+
+        acquisitions++;
+        acquisitionNanos += System.nanoTime() - start;
     }
 
     public synchronized void releaseCS() {
         wantCS = false;
-        sendToken();
+        idle = 0;
+
+        if (haveToken && !wakers.isEmpty()) {
+            sendToken(wakers.poll());
+        } else {
+            sendToken();
+        }
     }
 
-    public void sendToken() {
+    private void sendToken() {
         if (haveToken && !wantCS) {
-            haveToken = false;
-            IPC.sendMessage(play, play.getNext(), MessageType.TOKEN, null, null, false);
+            sendToken(play.getNext());
         }
     }
 
+    private void sendToken(User user) {
+        haveToken = false;
+        forwardAt = 0;
+
+        HashMap<String, String> head = new HashMap<String, String>();
+        head.put("idle", Integer.toString(idle));
+        head.put("gen", Long.toString(generation));
+
+        // the requests still waiting go along, the next holder serves them
+        if (!wakers.isEmpty()) {
+            head.put("wakers", Json.toJson(wakers.toArray(new User[0])));
+            wakers.clear();
+        }
+
+        IPC.sendMessage(play, user, MessageType.TOKEN, head, replica.outgoing(user), false);
+    }
+
     public synchronized void handleMessage(Message message) {
-        if (message.getType() == MessageType.TOKEN) {
-            haveToken = true;
-            if (wantCS) {
-                notify();
-            } else {
-                sendToken();
+        switch (message.getType()) {
+            case TOKEN:
+                HashMap<String, String> head = message.getHead();
+                long gen = (head != null && head.containsKey("gen")) ? Long.parseLong(head.get("gen")) : 0;
+
+                if (gen < generation || fence.hold(message, gen)) {
+                    // outlived by a regenerated token, or maybe about to be
+                    break;
+                }
+
+                generation = gen;
+                haveToken = true;
+                hops++;
+
+                // getBody() would serialize a decoded update to JSON just to test it
+                replica.incoming((message.getContent() != null || message.getBody() != null) ? message.getBodyAs(IndexUpdate.class) : null, gen);
+
+                idle = (head != null && head.containsKey("idle")) ? Integer.parseInt(head.get("idle")) : 0;
+
+                if (head != null && head.containsKey("wakers")) {
+                    for (User user : Json.fromJson(head.get("wakers"), User[].class)) {
+                        if (!user.equals(play.getUser()) && !wakers.contains(user)) {
+                            wakers.add(user);
+                        }
+                    }
+                }
+
+                received();
+                break;
+
+            case TOKEN_REQUEST:
+                User requester = message.getBodyAs(User.class);
+
+                if (requester.equals(play.getUser())) {
+                    // back to us: the token was travelling
+                    break;
+                }
+
+                if (haveToken && !wantCS) {
+                    idle = 0;
+                    sendToken(requester);
+                } else if (haveToken) {
+                    if (!wakers.contains(requester)) {
+                        wakers.add(requester);
+                    }
+                } else {
+                    IPC.sendMessage(play, play.getNext(), MessageType.TOKEN_REQUEST, null, requester, false);
+                }
+                break;
+        }
+    }
+
+    private void received() {
+        if (wantCS) {
+            notifyAll();
+        } else if (!wakers.isEmpty()) {
+            idle = 0;
+            sendToken(wakers.poll());
+        } else if (Config.tokenParking) {
+            hold();
+        } else {
+            sendToken();
+        }
+    }
+
+    public synchronized void peerFailed(User user) {
+        wakers.remove(user);
+        replica.forget(user);
+
+        Message held = fence.ownerFailed(user);
+
+        if (held != null) {
+            handleMessage(held);
+        }
+    }
+
+    public synchronized boolean holdsToken() {
+        return haveToken && !unlocked;
+    }
+
+    public synchronized long generation() {
+        return generation;
+    }
+
+    public synchronized boolean fence(long gen, User owner) {
+        return fence.raise(gen, owner);
+    }
+
+    public synchronized void resolve(long gen, User owner, boolean regenerated) {
+        Message held = fence.lift(gen, owner);
+
+        if (regenerated) {
+            generation = Math.max(generation, gen);
+        } else if (held != null) {
+            handleMessage(held);
+        }
+    }
+
+    // the positions went with the old token, the index starts over with ours
+    public synchronized void regenerate(long gen) {
+        generation = gen;
+        haveToken = true;
+        idle = 0;
+
+        replica.start(gen);
+        replica.get().put(play.getUser(), play.getPosition());
+
+        received();
+    }
+
+    // keeps the idle token for a while before passing it on, or parks it
+    private void hold() {
+        idleHops++;
+        idle++;
+
+        int size = 1 + play.getGame().getUsers().size();
+        int round = idle / size;
+
+        if (round >= Config.tokenParkRounds) {
+            forwardAt = 0;  // parked until somebody asks for it
+        } else {
+            forwardAt = System.currentTimeMillis() + Math.min(Config.tokenMaxDelay, Config.tokenBaseDelay << round);
+            notifyAll();
+        }
+    }
+
+    private synchronized void forwardIdleToken() {
+        while (running) {
+            try {
+                if (haveToken && !wantCS && forwardAt > 0) {
+                    long delay = forwardAt - System.currentTimeMillis();
+
+                    if (delay <= 0) {
+                        sendToken();
+                    } else {
+                        wait(delay);
+                    }
+                } else {
+                    wait();
+                }
+            } catch (InterruptedException exc) {
+                exc.printStackTrace();
             }
         }
     }
 
+    // only the holder's copy is exact
+    public synchronized PositionIndex getIndex() {
+        return (haveToken && !unlocked) ? replica.get() : null;
+    }
+
     public synchronized void unlock() {
         wantCS = false;
+        unlocked = true;
         haveToken = true;
-        notify();
+        forwardAt = 0;
+        notifyAll();
+    }
+
+    public synchronized void exit() {
+        running = false;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized String toString() {
+        double seconds = Math.max(1, System.currentTimeMillis() - started) / 1000.0;
+
+        return String.format("token: %d hops (%.1f/s), %d idle (%.1f/s), %d acquisitions, avg %.3f ms%n%s",
+                hops, hops / seconds, idleHops, idleHops / seconds, acquisitions, acquisitions == 0 ? 0.0 : acquisitionNanos / 1e6 / acquisitions, replica);
     }
 }
\ No newline at end of file